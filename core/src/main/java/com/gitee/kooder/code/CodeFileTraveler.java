@@ -16,18 +16,26 @@
 package com.gitee.kooder.code;
 
 import com.gitee.kooder.core.Constants;
+import com.gitee.kooder.index.BatchTaxonomyWriter;
 import com.gitee.kooder.index.IndexManager;
 import com.gitee.kooder.models.SourceFile;
+import com.gitee.kooder.storage.StorageFactory;
 import org.apache.lucene.document.Document;
-import org.apache.lucene.document.NumericDocValuesField;
-import org.apache.lucene.facet.FacetsConfig;
+import org.apache.lucene.document.LongPoint;
 import org.apache.lucene.facet.taxonomy.TaxonomyWriter;
-import org.apache.lucene.index.IndexWriter;
-import org.apache.lucene.index.Term;
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.SimpleCollector;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Travel all file in repository and build index for it
@@ -52,11 +60,35 @@ public class CodeFileTraveler implements FileTraveler {
      */
     @Override
     public void updateDocument(SourceFile codeid) {
+        if(updateDocument(codeid, taxonomyWriter))
+            StorageFactory.markChanged(Constants.TYPE_CODE, 1);
+    }
+
+    /**
+     * update source file indexes in batch, facet ordinals are cached in the batch
+     *
+     * @param docs
+     */
+    @Override
+    public void updateDocuments(List<SourceFile> docs) {
+        TaxonomyWriter batchTaxonomyWriter = new BatchTaxonomyWriter(taxonomyWriter);
+        int count = 0;
+        for(SourceFile codeid : docs) {
+            if(updateDocument(codeid, batchTaxonomyWriter))
+                count ++;
+        }
+        if(count > 0)
+            StorageFactory.markChanged(Constants.TYPE_CODE, count);
+    }
+
+    private boolean updateDocument(SourceFile codeid, TaxonomyWriter taxonomyWriter) {
         try {
-            Document doc = buildFacetDocument(codeid.getDocument());
+            Document doc = IndexManager.facetsConfig.build(taxonomyWriter, codeid.getDocument());
             writer.updateDocument(new Term(Constants.FIELD_UUID, codeid.getUuid()), doc);
+            return true;
         } catch (IllegalArgumentException | IOException e) {
             log.error("Failed to update ducment<code>: file:" + codeid.getName() + " in repo:" + codeid.getRepository().getName(), e);
+            return false;
         }
     }
 
@@ -71,6 +103,7 @@ public class CodeFileTraveler implements FileTraveler {
         //log.info("deleteDocument:" + codeid);
         try {
             writer.deleteDocuments(new Term(Constants.FIELD_UUID, codeid.getUuid()));
+            StorageFactory.markChanged(Constants.TYPE_CODE, 1);
         } catch (IOException e) {
             log.error("Failed to delete ducment<code> with uuid = " + codeid.getUuid(), e);
         }
@@ -85,20 +118,67 @@ public class CodeFileTraveler implements FileTraveler {
     public void resetRepository(long repoId) {
         //log.info("resetRepository:" + repoId);
         try {
-            writer.deleteDocuments(NumericDocValuesField.newSlowExactQuery(Constants.FIELD_REPO_ID, repoId));
+            writer.deleteDocuments(LongPoint.newExactQuery(Constants.FIELD_REPO_ID, repoId));
         } catch (IOException e) {
             log.error("Failed to reset repository with id = " + repoId, e);
         }
     }
 
     /**
-     * Building facet document
-     * @param doc
-     * @return
-     * @throws IOException
+     * Read uuid and index version of all indexed files in repository.
+     * Open a near-real-time reader from the writer so that uncommitted changes are visible,
+     * documents written before index version was added are mapped to null and will be rebuilt.
+     *
+     * @param repoId
+     * @return uuid -> index version, null if failed
+     */
+    @Override
+    public Map<String, String> getIndexedVersions(long repoId) {
+        try (DirectoryReader reader = DirectoryReader.open(writer)) {
+            IndexSearcher searcher = new IndexSearcher(reader);
+            searcher.setQueryCache(null);
+            VersionCollector collector = new VersionCollector();
+            searcher.search(LongPoint.newExactQuery(Constants.FIELD_REPO_ID, repoId), collector);
+            return collector.versions;
+        } catch (IOException e) {
+            log.error("Failed to read indexed versions of repository with id = " + repoId, e);
+            return null;
+        }
+    }
+
+    /**
+     * Collect uuid -> index version of matched documents
      */
-    private Document buildFacetDocument(Document doc) throws IOException {
-        FacetsConfig facetsConfig = IndexManager.facetsConfig;
-        return facetsConfig.build(taxonomyWriter, doc);
+    private static class VersionCollector extends SimpleCollector {
+
+        private final static Set<String> FIELDS_TO_LOAD = Collections.singleton(Constants.FIELD_UUID);
+
+        final Map<String, String> versions = new HashMap<>();
+
+        private LeafReader reader;
+        private SortedDocValues uuids;
+        private SortedDocValues indexVersions;
+
+        @Override
+        protected void doSetNextReader(LeafReaderContext context) throws IOException {
+            this.reader = context.reader();
+            this.uuids = reader.getSortedDocValues(Constants.FIELD_UUID);
+            this.indexVersions = reader.getSortedDocValues(Constants.FIELD_INDEX_VERSION);
+        }
+
+        @Override
+        public void collect(int doc) throws IOException {
+            String uuid = (uuids != null && uuids.advanceExact(doc)) ? uuids.binaryValue().utf8ToString()
+                    : reader.document(doc, FIELDS_TO_LOAD).get(Constants.FIELD_UUID);
+            if(uuid == null)
+                return;
+            boolean hasVersion = indexVersions != null && indexVersions.advanceExact(doc);
+            versions.put(uuid, hasVersion ? indexVersions.binaryValue().utf8ToString() : null);
+        }
+
+        @Override
+        public ScoreMode scoreMode() {
+            return ScoreMode.COMPLETE_NO_SCORES;
+        }
     }
 }
@@ -17,6 +17,9 @@ package com.gitee.kooder.code;
 
 import com.gitee.kooder.models.SourceFile;
 
+import java.util.List;
+import java.util.Map;
+
 /**
  * 文件遍历回调接口
  * @author Winter Lau<javayou@gmail.com>
@@ -30,6 +33,14 @@ public interface FileTraveler {
      */
     void updateDocument(SourceFile doc);
 
+    /**
+     * 批量更新源码文档，单个文档失败不影响其他文档
+     * @param docs
+     */
+    default void updateDocuments(List<SourceFile> docs) {
+        docs.forEach(this::updateDocument);
+    }
+
     /**
      * 删除文档
      * @param doc
@@ -43,4 +54,13 @@ public interface FileTraveler {
      */
     void resetRepository(long repoId);
 
+    /**
+     * 读取仓库中已经索引的文件及其索引版本（见 SourceFile.getIndexVersion），强推后重建索引时只处理版本发生变化的文件
+     * @param repoId
+     * @return uuid -> index version（没有索引版本的旧文档为 null），不支持时返回 null，此时会清空仓库索引后全量重建
+     */
+    default Map<String, String> getIndexedVersions(long repoId) {
+        return null;
+    }
+
 }
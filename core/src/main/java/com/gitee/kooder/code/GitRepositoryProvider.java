@@ -27,6 +27,7 @@ import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.apache.lucene.facet.taxonomy.TaxonomyWriter;
 import org.apache.lucene.index.IndexWriter;
 import org.eclipse.jgit.annotations.NonNull;
@@ -51,10 +52,15 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.nio.file.Path;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Semaphore;
+import java.util.function.BiPredicate;
 
 /**
  * Git 仓库源
@@ -73,7 +79,19 @@ public class GitRepositoryProvider implements RepositoryProvider {
 
     private static  final String REPO_SUFFIX = ".git";
 
+    private int indexThreads;       //全量索引时每个仓库构建文档的线程数，小于等于 0 时在当前线程中处理
+    private int indexQueueSize;     //全量索引流水线的队列长度
+    private int indexBatchSize;     //全量索引时每批写入的文档数
+    private Semaphore fetchPermits; //所有仓库同时 clone/fetch 的数量上限，为 null 时不限制
+
     public GitRepositoryProvider() {
+        Properties props = KooderConfig.getIndexerProperties();
+        this.indexThreads   = NumberUtils.toInt(props.getProperty("code_threads"), Runtime.getRuntime().availableProcessors());
+        this.indexQueueSize = NumberUtils.toInt(props.getProperty("code_queue_size"), 1000);
+        this.indexBatchSize = NumberUtils.toInt(props.getProperty("code_batch_size"), 100);
+        int maxFetches = NumberUtils.toInt(props.getProperty("max_fetches"), 4);
+        this.fetchPermits   = (maxFetches > 0) ? new Semaphore(maxFetches, true) : null;
+
         String gitUrl = KooderConfig.getProperty("gitlab.url");
         if(gitUrl.startsWith(HTTPS)){
             this.protocol = HTTPS;
@@ -143,36 +161,42 @@ public class GitRepositoryProvider implements RepositoryProvider {
             }
             File repoFile = StorageFactory.getRepositoryPath(repo.getRelativePath()).toFile();
             log.info("Pulling code from {} to {}.", repo.getUrl(), repoFile.getPath());
-            if (!repoFile.exists()) {//检查目录不存在就 clone
-                git = justClone(repo.getUrl(), repoFile);
-                log.info("Repository '{}:{}' clone from '{}' in {}ms",
-                        repo.getId(), repo.getName(), repo.getUrl(), System.currentTimeMillis() - ct);
-            } else {//目录存在就 pull，如果使用 bare 模式克隆仓库，对应的是 git fetch
-                git = Git.open(repoFile);
-                FetchCommand fetchCmd = git.fetch();
-                List<RemoteConfig> remotes = git.remoteList().call();
-                boolean needReClone = false;
-                for (RemoteConfig remote : remotes) {
-                    if (remote.getName().equals(fetchCmd.getRemote())) {
-                        if (remote.getURIs().get(0).toString().equals(repo.getUrl())) {
-                            //remote url no changed, just fetch it
-                            this.autoSetCredential(fetchCmd);
-                            fetchCmd.call();
-                            log.info("Repository '{}:{}' pulled from '{}' in {}ms",
-                                    repo.getId(), repo.getName(), repo.getUrl(), System.currentTimeMillis() - ct);
-                            break;
-                        } else
-                            needReClone = true;
-                    }
-                }
-                if (needReClone) {//仓库地址变成另外一个不相关的仓库时候重新克隆？
-                    git.close();
-                    FileUtils.forceDelete(repoFile);
+            acquireFetchPermit();
+            try {
+                if (!repoFile.exists()) {//检查目录不存在就 clone
                     git = justClone(repo.getUrl(), repoFile);
-                    log.info("Repository '{}:{}' mismatch local objects, re-clone from '{}' in {}ms",
+                    log.info("Repository '{}:{}' clone from '{}' in {}ms",
                             repo.getId(), repo.getName(), repo.getUrl(), System.currentTimeMillis() - ct);
+                } else {//目录存在就 pull，如果使用 bare 模式克隆仓库，对应的是 git fetch
+                    git = Git.open(repoFile);
+                    FetchCommand fetchCmd = git.fetch();
+                    List<RemoteConfig> remotes = git.remoteList().call();
+                    boolean needReClone = false;
+                    for (RemoteConfig remote : remotes) {
+                        if (remote.getName().equals(fetchCmd.getRemote())) {
+                            if (remote.getURIs().get(0).toString().equals(repo.getUrl())) {
+                                //remote url no changed, just fetch it
+                                this.autoSetCredential(fetchCmd);
+                                fetchCmd.call();
+                                log.info("Repository '{}:{}' pulled from '{}' in {}ms",
+                                        repo.getId(), repo.getName(), repo.getUrl(), System.currentTimeMillis() - ct);
+                                break;
+                            } else
+                                needReClone = true;
+                        }
+                    }
+                    if (needReClone) {//仓库地址变成另外一个不相关的仓库时候重新克隆？
+                        git.close();
+                        FileUtils.forceDelete(repoFile);
+                        git = justClone(repo.getUrl(), repoFile);
+                        log.info("Repository '{}:{}' mismatch local objects, re-clone from '{}' in {}ms",
+                                repo.getId(), repo.getName(), repo.getUrl(), System.currentTimeMillis() - ct);
+                    }
+                    //fetchCmd.setForceUpdate(true);
                 }
-                //fetchCmd.setForceUpdate(true);
+            } finally {
+                if(fetchPermits != null)
+                    fetchPermits.release();
             }
 
             boolean needRebuildIndexes = true;
@@ -193,10 +217,13 @@ public class GitRepositoryProvider implements RepositoryProvider {
 
             if (needRebuildIndexes) {
                 long cti = System.currentTimeMillis();
-                if (traveler != null)
+                //上一次保存的 commit id 已经失效，是强推导致的，已经索引过的文件只重建索引版本发生变化的部分，并删除已经不存在的文件
+                //没有 commit id（首次索引或者要求重建索引）时清空仓库索引后全量重建
+                boolean historyRewritten = StringUtils.isNotBlank(repo.getLastCommitId());
+                Map<String, String> versions = (historyRewritten && traveler != null) ? traveler.getIndexedVersions(repo.getId()) : null;
+                if (versions == null && traveler != null)
                     traveler.resetRepository(repo.getId());
-                //上一次保持的 commit id 已经失效，可能是强推导致，需要重建仓库索引
-                int fc = this.indexAllFiles(repo, git, traveler);
+                int fc = this.indexAllFiles(repo, git, traveler, versions);
                 log.info("Rebuilding '{}<{}>' {} indexes in {}ms", repo.getName(), repo.getId(), fc, System.currentTimeMillis() - cti);
                 return fc;
             }
@@ -240,6 +267,21 @@ public class GitRepositoryProvider implements RepositoryProvider {
             command.setTransportConfigCallback(this.transportConfigCallback);
     }
 
+    /**
+     * 等待 clone/fetch 的许可，网络和远程仓库服务的压力与同时拉取的仓库数有关，和索引线程数无关
+     * @throws InterruptedIOException
+     */
+    private void acquireFetchPermit() throws InterruptedIOException {
+        if(fetchPermits == null)
+            return;
+        try {
+            fetchPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for fetch permit");
+        }
+    }
+
     /**
      * clone git repository
      * @param fromUrl
@@ -260,28 +302,56 @@ public class GitRepositoryProvider implements RepositoryProvider {
 
     /**
      * 重建代码仓索引
+     * 遍历文件、构建文档和写入索引通过流水线并行处理，见 RepositoryIndexPipeline
      * @param repo
      * @param git
      * @param traveler
+     * @param versions  仓库中已经索引的文件(uuid -> index version)，为 null 时索引所有文件；
+     *                   索引版本没有变化的文件不再重复索引，遍历结束后剩余的文件已经从仓库中删除
      * @throws IOException
      * @throws GitAPIException
      */
-    private int indexAllFiles(CodeRepository repo, Git git, FileTraveler traveler) throws IOException, GitAPIException {
+    private int indexAllFiles(CodeRepository repo, Git git, FileTraveler traveler, Map<String, String> versions)
+            throws IOException, GitAPIException
+    {
         int fileCount = 0;
         Ref head = git.getRepository().findRef(Constants.HEAD);
         if(head != null && head.getObjectId() != null) {
             repo.setLastCommitId(head.getObjectId().name());//回调最新 commit id 信息
             RevCommit commit = git.getRepository().parseCommit(head.getObjectId());
+            SourceFile template = newSourceFile(repo, git);
+            BiPredicate<String, ObjectId> changed = (versions == null) ? null : (path, objectId) -> {
+                String uuid = new SourceFile(repo.getId(), repo.getName(), path).getUuid();
+                template.setRevision(objectId.name());
+                return !template.getIndexVersion().equals(versions.remove(uuid));
+            };
             try (TreeWalk treeWalk = new TreeWalk(git.getRepository())) {
                 treeWalk.addTree(commit.getTree());
                 treeWalk.setRecursive(true);
-                while(treeWalk.next()) {
-                    long ct = System.currentTimeMillis();
-                    addFileToDocument(repo, git, treeWalk.getPathString(), treeWalk.getObjectId(0), traveler);
-                    log.debug("add file:{} to index in {}ms.", treeWalk.getPathString(), (System.currentTimeMillis()-ct));
-                    fileCount ++;
+                if(indexThreads > 0) {
+                    RepositoryIndexPipeline pipeline = new RepositoryIndexPipeline(indexThreads, indexQueueSize, indexBatchSize,
+                            (path, objectId) -> buildFileDocument(repo, git, path, objectId, traveler));
+                    fileCount = pipeline.run(treeWalk, changed, traveler);
+                }
+                else {
+                    while (treeWalk.next()) {
+                        if (changed != null && !changed.test(treeWalk.getPathString(), treeWalk.getObjectId(0)))
+                            continue;
+                        long ct = System.currentTimeMillis();
+                        addFileToDocument(repo, git, treeWalk.getPathString(), treeWalk.getObjectId(0), traveler);
+                        log.debug("add file:{} to index in {}ms.", treeWalk.getPathString(), (System.currentTimeMillis() - ct));
+                        fileCount++;
+                    }
                 }
             }
+            if(versions != null && traveler != null) {
+                for(String uuid : versions.keySet()) {
+                    SourceFile doc = new SourceFile();
+                    doc.setUuid(uuid);
+                    traveler.deleteDocument(doc);
+                }
+                log.info("Repository '{}<{}>' {} files changed, {} files deleted.", repo.getName(), repo.getId(), fileCount, versions.size());
+            }
         }
         return fileCount;
     }
@@ -299,17 +369,46 @@ public class GitRepositoryProvider implements RepositoryProvider {
     private void addFileToDocument(CodeRepository repo, Git git, String path, ObjectId objectId, FileTraveler traveler)
             throws IOException, GitAPIException
     {
-        boolean isBinaryFile = TextFileUtils.isBinaryFile(path);
-        if(isBinaryFile) { //Binary file
-            SourceFile doc = buildBinaryDocument(repo, git, path, objectId);
+        SourceFile doc = buildFileDocument(repo, git, path, objectId, traveler);
+        if (doc != null && traveler != null) {
             traveler.updateDocument(doc);
         }
-        else { // Text file
-            SourceFile doc = buildDocument(repo, git, path, objectId);
-            if (doc != null && traveler != null) {
-                traveler.updateDocument(doc);
-            }
-        }
+    }
+
+    /**
+     * 根据文件类型构建二进制文件或者源码文件的文档，无法构建文档时删除该文件原来的文档
+     * @param repo
+     * @param git
+     * @param path
+     * @param objectId
+     * @param traveler
+     * @return 文件对象不存在时返回 null
+     * @throws IOException
+     * @throws GitAPIException
+     */
+    private SourceFile buildFileDocument(CodeRepository repo, Git git, String path, ObjectId objectId, FileTraveler traveler)
+            throws IOException, GitAPIException
+    {
+        SourceFile doc = TextFileUtils.isBinaryFile(path) ? //Binary file
+                buildBinaryDocument(repo, git, path, objectId) : buildDocument(repo, git, path, objectId);
+        if (doc == null && traveler != null)
+            traveler.deleteDocument(new SourceFile(repo.getId(), repo.getName(), path));
+        return doc;
+    }
+
+    /**
+     * 创建文档并设置仓库相关的信息
+     * @param repo
+     * @param git
+     * @return
+     * @throws IOException
+     */
+    private static SourceFile newSourceFile(CodeRepository repo, Git git) throws IOException {
+        SourceFile doc = new SourceFile(repo.getVender());
+        doc.setEnterprise(repo.getEnterprise());
+        doc.setRepository(new Relation(repo.getId(), repo.getName(), repo.getUrl()));
+        doc.setBranch(git.getRepository().getBranch());
+        return doc;
     }
 
     private static @NonNull
@@ -369,11 +468,7 @@ public class GitRepositoryProvider implements RepositoryProvider {
                 List<String> codeLines = TextFileUtils.readFileLines(stream, 20000);
                 String contents = String.join("\n", codeLines);
 
-                SourceFile doc = new SourceFile(repo.getVender());
-                doc.setVender(repo.getVender());
-                doc.setEnterprise(repo.getEnterprise());
-                doc.setRepository(new Relation(repo.getId(), repo.getName(), repo.getUrl()));
-                doc.setBranch(git.getRepository().getBranch());
+                SourceFile doc = newSourceFile(repo, git);
                 doc.setName(FilenameUtils.getName(path));                       //文件名
                 doc.setLocation(path);
                 doc.setLanguage(FileClassifier.languageGuess(path, contents));  //语言
@@ -409,11 +504,7 @@ public class GitRepositoryProvider implements RepositoryProvider {
      * @throws IOException
      */
     private SourceFile buildBinaryDocument(CodeRepository repo, Git git, String path, ObjectId objectId) throws IOException {
-        SourceFile doc = new SourceFile(repo.getVender());
-
-        doc.setEnterprise(repo.getEnterprise());
-        doc.setRepository(new Relation(repo.getId(), repo.getName(), repo.getUrl()));
-        doc.setBranch(git.getRepository().getBranch());
+        SourceFile doc = newSourceFile(repo, git);
         doc.setName(FilenameUtils.getName(path));     //文件名
         doc.setLocation(path);                        //完整的项目内路径
         doc.setLanguage(FileClassifier.BINARY_LANGUAGE);  //语言
@@ -503,10 +594,9 @@ public class GitRepositoryProvider implements RepositoryProvider {
                           "https://gitee.com/DogGodGit/FlaxEngine",
                           "https://gitee.com/vnpy/vnpy"};
 
-        try(
-            IndexWriter writer = StorageFactory.getIndexWriter("code");
-            TaxonomyWriter twriter = StorageFactory.getTaxonomyWriter("code"))
-        {
+        IndexWriter writer = StorageFactory.getIndexWriter("code");
+        TaxonomyWriter twriter = StorageFactory.getTaxonomyWriter("code");
+        try {
             for(String repoUrl : repos) {
                 CodeRepository repo = new CodeRepository();
                 String repoName = repoUrl.substring(repoUrl.lastIndexOf('/')+1);
@@ -522,6 +612,8 @@ public class GitRepositoryProvider implements RepositoryProvider {
                 grp.pull(repo, traveler);
                 RepositoryManager.INSTANCE.save(repo);
             }
+        } finally {
+            StorageFactory.close();
         }
     }
 }
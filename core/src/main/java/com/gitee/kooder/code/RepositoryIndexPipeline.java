@@ -0,0 +1,199 @@
+/**
+ * Copyright (c) 2021, OSChina (oschina.net@gmail.com).
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitee.kooder.code;
+
+import com.gitee.kooder.models.SourceFile;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.treewalk.TreeWalk;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiPredicate;
+
+/**
+ * 仓库全量索引流水线：
+ * 1. 遍历线程执行 TreeWalk，把 (path, ObjectId) 放入有界队列
+ * 2. 多个工作线程读取文件内容，识别语言、统计代码行，构建 SourceFile 文档后放入有界队列
+ * 3. 调用线程从文档队列中批量取出文档交给 FileTraveler 写入索引
+ * 两个队列都是有界的，写索引跟不上时工作线程和遍历线程会被阻塞；FileTraveler 始终只在调用线程中使用
+ */
+class RepositoryIndexPipeline {
+
+    private final static long POLL_INTERVAL = 200; //写索引线程检查流水线是否出错的间隔(ms)
+
+    private final static Entry END_OF_TREE = new Entry(null, null);
+    private final static Object WORKER_DONE = new Object();
+
+    private final int threads;
+    private final int queueSize;
+    private final int batchSize;
+    private final DocumentBuilder builder;
+
+    private final AtomicInteger fileCount = new AtomicInteger(0);
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    /**
+     * @param threads  构建文档的工作线程数
+     * @param queueSize  待处理文件以及待写入文档的队列长度
+     * @param batchSize  每批写入索引的最大文档数
+     * @param builder  从文件构建文档
+     */
+    RepositoryIndexPipeline(int threads, int queueSize, int batchSize, DocumentBuilder builder) {
+        this.threads = Math.max(threads, 1);
+        this.queueSize = Math.max(queueSize, 1);
+        this.batchSize = Math.max(batchSize, 1);
+        this.builder = builder;
+    }
+
+    /**
+     * 遍历仓库中的文件并写入索引
+     * @param treeWalk  已经设置好起始 tree 的 TreeWalk，只在遍历线程中使用
+     * @param filter  判断 (path, ObjectId) 是否需要索引，只在遍历线程中调用，为 null 时索引所有文件
+     * @param traveler
+     * @return 返回处理的文件数
+     * @throws IOException  任意一个阶段出错都会终止整个流水线
+     */
+    int run(TreeWalk treeWalk, BiPredicate<String, ObjectId> filter, FileTraveler traveler) throws IOException {
+        BlockingQueue<Entry> entries = new ArrayBlockingQueue<>(queueSize);
+        BlockingQueue<Object> docs = new ArrayBlockingQueue<>(queueSize);
+        AtomicInteger threadIndex = new AtomicInteger(0);
+        ExecutorService executor = Executors.newFixedThreadPool(threads + 1, r -> {
+            Thread t = new Thread(r, "code-indexer-" + threadIndex.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            executor.execute(() -> walk(treeWalk, filter, entries));
+            for(int i = 0; i < threads; i++)
+                executor.execute(() -> build(entries, docs));
+
+            List<Object> items = new ArrayList<>(batchSize);
+            List<SourceFile> batch = new ArrayList<>(batchSize);
+            int finished = 0;
+            while(finished < threads) {
+                checkFailure();
+                Object item = docs.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                if(item == null)
+                    continue;
+                items.add(item);
+                docs.drainTo(items, batchSize - 1);
+                for(Object obj : items) {
+                    if(obj == WORKER_DONE)
+                        finished ++;
+                    else
+                        batch.add((SourceFile)obj);
+                }
+                if(traveler != null && batch.size() > 0)
+                    traveler.updateDocuments(batch);
+                items.clear();
+                batch.clear();
+            }
+            checkFailure();
+            return fileCount.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while indexing repository");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 遍历仓库中的文件，遍历结束后为每个工作线程放入一个结束标志
+     */
+    private void walk(TreeWalk treeWalk, BiPredicate<String, ObjectId> filter, BlockingQueue<Entry> entries) {
+        try {
+            while(treeWalk.next() && failure.get() == null) {
+                String path = treeWalk.getPathString();
+                ObjectId objectId = treeWalk.getObjectId(0);
+                if(filter == null || filter.test(path, objectId))
+                    entries.put(new Entry(path, objectId));
+            }
+            for(int i = 0; i < threads; i++)
+                entries.put(END_OF_TREE);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Throwable e) {
+            failure.compareAndSet(null, e);
+        }
+    }
+
+    /**
+     * 构建文档，取到结束标志后通知写索引线程
+     */
+    private void build(BlockingQueue<Entry> entries, BlockingQueue<Object> docs) {
+        try {
+            for(Entry entry = entries.take(); entry != END_OF_TREE; entry = entries.take()) {
+                SourceFile doc = builder.build(entry.path, entry.objectId);
+                fileCount.incrementAndGet();
+                if(doc != null)
+                    docs.put(doc);
+            }
+            docs.put(WORKER_DONE);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Throwable e) {
+            failure.compareAndSet(null, e);
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable e = failure.get();
+        if(e instanceof IOException)
+            throw (IOException)e;
+        if(e instanceof RuntimeException)
+            throw (RuntimeException)e;
+        if(e instanceof Error)
+            throw (Error)e;
+        if(e != null)
+            throw new IOException(e);
+    }
+
+    /**
+     * 从仓库文件构建索引文档
+     */
+    @FunctionalInterface
+    interface DocumentBuilder {
+
+        /**
+         * @param path  文件在仓库中的路径
+         * @param objectId  文件的 blob id
+         * @return 文件无法读取时返回 null
+         */
+        SourceFile build(String path, ObjectId objectId) throws IOException, GitAPIException;
+    }
+
+    private static class Entry {
+
+        final String path;
+        final ObjectId objectId;
+
+        Entry(String path, ObjectId objectId) {
+            this.path = path;
+            this.objectId = objectId;
+        }
+    }
+}
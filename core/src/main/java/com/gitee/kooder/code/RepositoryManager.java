@@ -84,26 +84,27 @@ class LuceneRepositoryManager implements RepositoryManager {
 
     @Override
     public void save(CodeRepository repo) {
-        synchronized (this){ //不支持并发写入
-            try (IndexWriter writer = StorageFactory.getIndexWriter(Constants.TYPE_METADATA)) {
-                Document doc = repo.getDocument();
-                writer.updateDocument(new Term(Constants.FIELD_REPO_ID, repo.getIdAsString()), doc);
-            } catch (IOException e) {
-                throw new IndexException("Failed to save repo in metedata db : " + repo, e);
-            }
+        try {
+            IndexWriter writer = StorageFactory.getIndexWriter(Constants.TYPE_METADATA);
+            Document doc = repo.getDocument();
+            writer.updateDocument(new Term(Constants.FIELD_REPO_ID, repo.getIdAsString()), doc);
+            //元信息在下次拉取前就会被读取，需要立即提交
+            StorageFactory.commit(Constants.TYPE_METADATA, writer);
+        } catch (IOException e) {
+            throw new IndexException("Failed to save repo in metedata db : " + repo, e);
         }
     }
 
     @Override
     public boolean delete(long id) {
-        synchronized (this) {
-            try (IndexWriter writer = StorageFactory.getIndexWriter(Constants.TYPE_METADATA)) {
-                writer.deleteDocuments(new Term(Constants.FIELD_REPO_ID, String.valueOf(id)));
-            } catch (IOException e) {
-                throw new IndexException("Failed to delete repo from metedata db, id = " + id, e);
-            }
-            return false;
+        try {
+            IndexWriter writer = StorageFactory.getIndexWriter(Constants.TYPE_METADATA);
+            writer.deleteDocuments(new Term(Constants.FIELD_REPO_ID, String.valueOf(id)));
+            StorageFactory.commit(Constants.TYPE_METADATA, writer);
+        } catch (IOException e) {
+            throw new IndexException("Failed to delete repo from metedata db, id = " + id, e);
         }
+        return false;
     }
 
 }
\ No newline at end of file
@@ -22,13 +22,12 @@ import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
 
 import java.io.IOException;
-import java.io.Reader;
 import java.io.StringReader;
-import java.util.ArrayList;
-import java.util.List;
 
 /**
  * New Source code tokenizer
+ * 分隔符（空白字符除外）和汉字各自作为一个词，其他连续的字符组成一个词
+ * 输入读入可重用的 char[] 缓冲区，字符类型通过预先计算的查找表判断，词条直接写入 CharTermAttribute，分词过程中不创建对象
  * @author Winter Lau<javayou@gmail.com>
  */
 public class SourceCodeTokenizer extends Tokenizer {
@@ -36,129 +35,116 @@ public class SourceCodeTokenizer extends Tokenizer {
     private final static String separatorChars = " ~!@#$%^&*()-_+[]{}?/\\<>.:;,'\"\r\n\t";
     private final static String uselessChars = "\r\n\t "; //{}()[];,
 
+    private final static int MAX_TERM_LENGTH = 32766;   //超过 Lucene 长度限制的词条输出为空词
+    private final static int BUFFER_SIZE = 4096;
+
+    private final static byte TYPE_WORD     = 0;    //组成词的字符
+    private final static byte TYPE_SYMBOL   = 1;    //单独作为一个词的分隔符
+    private final static byte TYPE_SPACE    = 2;    //不作为词的分隔符
+    private final static byte TYPE_IDEOGRAPHIC = 3; //汉字等表意字符，单独作为一个词
+
+    private final static byte[] CHAR_TYPES = new byte[Character.MAX_VALUE + 1];
+
+    static {
+        for(int ch = 0; ch <= Character.MAX_VALUE; ch++) {
+            if(Character.isIdeographic(ch))
+                CHAR_TYPES[ch] = TYPE_IDEOGRAPHIC;
+            else if(separatorChars.indexOf(ch) >= 0)
+                CHAR_TYPES[ch] = (Character.isWhitespace(ch) || uselessChars.indexOf(ch) >= 0) ? TYPE_SPACE : TYPE_SYMBOL;
+        }
+    }
+
     private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
     private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
 
-    private ReaderTokens tokens;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int bufferLength = 0;   //缓冲区中的字符数
+    private int bufferIndex = 0;    //缓冲区中下一个字符的位置
+    private int offset = 0;         //下一个字符在输入中的位置
+
+    private int pendingChar = -1;   //紧跟在词后面、需要在下一次输出的单字符词
+    private int pendingOffset;
 
     @Override
     public void reset() throws IOException {
         super.reset();
-        this.tokens = new ReaderTokens(this.input);
+        this.bufferLength = 0;
+        this.bufferIndex = 0;
+        this.offset = 0;
+        this.pendingChar = -1;
     }
 
     @Override
     public boolean incrementToken() throws IOException {
         super.clearAttributes();
 
-        IWord token = tokens.next();
-        if(token == null)
-            return false;
-
-        if(token.word.length() <= 32766)
-            this.addTerm(token);
-
-        return true;
-    }
-
-    /**
-     * 返回一个有效词条给 lucene
-     * @param ew
-     */
-    private void addTerm(IWord ew) {
-        if(ew == null)
-            return ;
-        termAtt.append(ew.word);
-        termAtt.setLength(ew.word.length());
-        offsetAtt.setOffset(correctOffset(ew.startOffset),correctOffset(ew.endOffset));
-    }
-
-    /**
-     * iterate reader to tokens
-     */
-    public static class ReaderTokens {
-
-        private int pos = 0;
-        private Reader reader;
-
-        private List<IWord> lastTokens = new ArrayList<>();
-
-        public ReaderTokens(Reader reader) {
-            this.reader = reader;
+        if(pendingChar >= 0) {
+            int ch = pendingChar;
+            pendingChar = -1;
+            return addChar((char)ch, pendingOffset);
         }
 
-        public IWord next() throws IOException {
-            if(lastTokens.size() > 0)
-                return lastTokens.remove(0);
-
-            StringBuffer word = new StringBuffer();
-            do {
-                int ch = reader.read();
-                pos ++;
-                if(ch == -1) // end of stream
+        char[] term = termAtt.buffer();
+        int length = 0;
+        int start = 0;
+        while(true) {
+            if(bufferIndex >= bufferLength) {
+                bufferLength = input.read(buffer, 0, buffer.length);
+                bufferIndex = 0;
+                if(bufferLength <= 0) {
+                    bufferLength = 0;
                     break;
-                if(Character.isIdeographic(ch)) { // chinese
-                    IWord cur = new IWord((char)ch, pos - 1, pos);
-                    if(word.length() == 0)
-                        return cur;
-                    else {
-                        lastTokens.add(cur);
-                        return new IWord(word.toString(), pos - word.length() - 1, pos - 1);
-                    }
                 }
-                else if(separatorChars.indexOf(ch) >= 0) { // ascii
-                    IWord cur = new IWord((char)ch, pos - 1, pos);
-                    if(word.length() == 0) {
-                        if (!Character.isWhitespace(ch) && uselessChars.indexOf((char)ch) < 0)
-                            return cur;
-                    }
-                    else {
-                        if (!Character.isWhitespace(ch) && uselessChars.indexOf((char)ch) < 0)
-                            lastTokens.add(cur);
-                        return new IWord(word.toString(), pos - word.length() - 1, pos - 1);
+            }
+            char ch = buffer[bufferIndex++];
+            int pos = offset++;
+            switch(CHAR_TYPES[ch]) {
+                case TYPE_WORD:
+                    if(length == 0)
+                        start = pos;
+                    if(length <= MAX_TERM_LENGTH) {
+                        if(length >= term.length)
+                            term = termAtt.resizeBuffer(length + 1);
+                        term[length] = ch;
                     }
-                }
-                else {
-                    word.append((char)ch);
-                }
-            } while (true);
-
-            return (word.length()>0)?new IWord(word.toString(), pos - word.length() - 1, pos - 1) : null;
+                    length ++;
+                    break;
+                case TYPE_SPACE:
+                    if(length > 0)
+                        return addWord(length, start, pos);
+                    break;
+                default:
+                    if(length == 0)
+                        return addChar(ch, pos);
+                    pendingChar = ch;
+                    pendingOffset = pos;
+                    return addWord(length, start, pos);
+            }
         }
-
+        return (length > 0) ? addWord(length, start, offset) : false;
     }
 
     /**
-     * token and position
+     * 输出缓冲在 termAtt 中的词条
      */
-    public static class IWord implements Comparable<IWord> {
-
-        public IWord(String word, int start, int end) {
-            this.word = word;
-            this.startOffset = start;
-            this.endOffset = end;
-        }
-        public IWord(char ch, int start, int end) {
-            this(String.valueOf(ch), start, end);
-        }
-
-        public String word;
-        public int startOffset;
-        public int endOffset;
-
-        @Override
-        public int compareTo(IWord o) {
-            return startOffset - o.startOffset;
+    private boolean addWord(int length, int start, int end) {
+        if(length <= MAX_TERM_LENGTH) {
+            termAtt.setLength(length);
+            offsetAtt.setOffset(correctOffset(start), correctOffset(end));
         }
+        else
+            termAtt.setEmpty();
+        return true;
+    }
 
-        @Override
-        public String toString() {
-            return "{ " +
-                    "word='" + word + '\'' +
-                    ", startOffset=" + startOffset +
-                    ", endOffset=" + endOffset +
-                    " }";
-        }
+    /**
+     * 输出单字符的词条
+     */
+    private boolean addChar(char ch, int pos) {
+        termAtt.buffer()[0] = ch;
+        termAtt.setLength(1);
+        offsetAtt.setOffset(correctOffset(pos), correctOffset(pos + 1));
+        return true;
     }
 
     /**
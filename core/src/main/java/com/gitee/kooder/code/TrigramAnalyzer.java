@@ -0,0 +1,77 @@
+/**
+ * Copyright (c) 2021, OSChina (oschina.net@gmail.com).
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitee.kooder.code;
+
+import com.gitee.kooder.query.QueryException;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.LowerCaseFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.ngram.NGramTokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.index.IndexOptions;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * 把源码切分成连续的三个字符（不区分大小写），用于子串搜索时的候选文档筛选
+ * 只需要判断文档是否包含某个三元组，因此索引中不保存位置和词频
+ */
+public class TrigramAnalyzer extends Analyzer {
+
+    public final static int GRAM_SIZE = 3;
+
+    public final static FieldType FIELD_TYPE = new FieldType();
+
+    static {
+        FIELD_TYPE.setTokenized(true);
+        FIELD_TYPE.setStored(false);
+        FIELD_TYPE.setOmitNorms(true);
+        FIELD_TYPE.setIndexOptions(IndexOptions.DOCS);
+        FIELD_TYPE.freeze();
+    }
+
+    @Override
+    protected TokenStreamComponents createComponents(String fieldName) {
+        Tokenizer tokenizer = new NGramTokenizer(GRAM_SIZE, GRAM_SIZE);
+        return new TokenStreamComponents(tokenizer, new LowerCaseFilter(tokenizer));
+    }
+
+    /**
+     * 文本中所有不重复的三元组
+     * @param text
+     * @return
+     */
+    public Set<String> trigrams(String text) {
+        Set<String> grams = new LinkedHashSet<>();
+        try (TokenStream stream = tokenStream(null, new StringReader(text))){
+            CharTermAttribute termAtt = stream.addAttribute(CharTermAttribute.class);
+            stream.reset();
+            while (stream.incrementToken()) {
+                grams.add(termAtt.toString());
+            }
+            stream.end();
+        } catch (IOException e) {
+            throw new QueryException("Failed to trigrams: " + text, e);
+        }
+        return grams;
+    }
+
+}
@@ -16,9 +16,11 @@
 package com.gitee.kooder.core;
 
 import com.gitee.kooder.code.SourceCodeAnalyzer;
+import com.gitee.kooder.code.TrigramAnalyzer;
 import com.gitee.kooder.jcseg.JcsegAnalyzer;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.lionsoul.jcseg.ISegment;
 import org.lionsoul.jcseg.IWord;
@@ -35,7 +37,10 @@ import java.io.StringReader;
 import java.net.URLDecoder;
 import java.security.CodeSource;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.stream.Collectors;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
@@ -51,9 +56,24 @@ public class AnalyzerFactory {
     private static ADictionary dic;
     private static SegmenterConfig config;
     private static SegmenterConfig configForSplit;
+    //jcseg 分词器全局共享，Lucene 会为每个线程缓存一套 Tokenizer（内含 jcseg 分词实例），重复使用时只重置输入
+    private static Analyzer indexAnalyzer;
+    private static Analyzer searchAnalyzer;
+    private static Analyzer highlightAnalyzer;
+    //关键字切分使用的 NLP 分词实例池，jcseg 分词实例不是线程安全的，同一时间只能被一个线程使用
+    private final static int MAX_IDLE_SEGMENTS = Runtime.getRuntime().availableProcessors() * 2;
+    private final static Queue<ISegment> splitSegments = new ConcurrentLinkedQueue<>();
     private final static StandardAnalyzer standardAnalyzer = new StandardAnalyzer();
     //private static TechCodeAnalyzer codeAnalyzer = new TechCodeAnalyzer();
     private final static SourceCodeAnalyzer codeAnalyzer = new SourceCodeAnalyzer() ;
+    private final static TrigramAnalyzer trigramAnalyzer = new TrigramAnalyzer();
+    private final static Analyzer codeIndexAnalyzer = new PerFieldAnalyzerWrapper(codeAnalyzer,
+            Collections.singletonMap(Constants.FIELD_SOURCE_NGRAM, trigramAnalyzer));
+    //源码是否同时建立三元组索引（indexer.code_ngram），开启后需要重建代码索引
+    private final static boolean codeNGramEnabled = Boolean.parseBoolean(
+            KooderConfig.getIndexerProperties().getProperty("code_ngram", "false").trim());
+    //源码字段是否在索引中保存词条的偏移位置，用于代码高亮；已有的代码索引没有偏移位置时关闭，重建代码索引后生效
+    private static volatile boolean codeOffsetsEnabled = true;
 
     static {
         config = new SegmenterConfig(true);
@@ -68,23 +88,26 @@ public class AnalyzerFactory {
         } catch (IOException e ) {
             log.error("Failed to load custom lexicon", e);
         }
+        indexAnalyzer = new JcsegAnalyzer(ISegment.Type.MOST, config, dic);
+        searchAnalyzer = new JcsegAnalyzer(ISegment.Type.MOST, configForSplit, dic);
+        highlightAnalyzer = new JcsegAnalyzer(ISegment.Type.COMPLEX, configForSplit, dic);
     }
 
     /**
-     * 返回分词器
+     * 返回分词器，返回的是共享实例，可以在多个线程中同时使用，使用者不能关闭
      * @param forIndexer  true:索引用，false:搜索用
      * @return
      */
     public final static Analyzer getInstance(boolean forIndexer) {
-        return forIndexer?new JcsegAnalyzer(ISegment.Type.MOST, config, dic):new JcsegAnalyzer(ISegment.Type.MOST, configForSplit, dic);
+        return forIndexer?indexAnalyzer:searchAnalyzer;
     }
 
     /**
-     * 返回高亮分词器
+     * 返回高亮分词器（共享实例）
      * @return
      */
     public final static Analyzer getHighlightInstance() {
-        return new JcsegAnalyzer(ISegment.Type.COMPLEX, configForSplit, dic);
+        return highlightAnalyzer;
     }
 
     /**
@@ -95,6 +118,45 @@ public class AnalyzerFactory {
         return codeAnalyzer;
     }
 
+    /**
+     * 写入代码索引时使用的分词器，三元组字段使用 TrigramAnalyzer，其他字段使用代码分词器
+     * @return
+     */
+    public final static Analyzer getCodeIndexAnalyzer() {
+        return codeIndexAnalyzer;
+    }
+
+    /**
+     * 源码三元组分词器
+     * @return
+     */
+    public final static TrigramAnalyzer getTrigramAnalyzer() {
+        return trigramAnalyzer;
+    }
+
+    /**
+     * 代码索引是否包含三元组字段
+     * @return
+     */
+    public final static boolean isCodeNGramEnabled() {
+        return codeNGramEnabled;
+    }
+
+    /**
+     * 源码字段是否保存词条的偏移位置
+     * @return
+     */
+    public final static boolean isCodeOffsetsEnabled() {
+        return codeOffsetsEnabled;
+    }
+
+    /**
+     * 已有的代码索引中源码字段没有偏移位置，同一个字段的索引选项不能改变，继续按原来的方式写入
+     */
+    public final static void disableCodeOffsets() {
+        codeOffsetsEnabled = false;
+    }
+
     /**
      * 用于一些简单的查询条件的解析器
      * @return
@@ -143,7 +205,9 @@ public class AnalyzerFactory {
         List<String> keys = new ArrayList<>();
         if (StringUtils.isNotBlank(sentence)) {
             StringReader reader = new StringReader(sentence);
-            ISegment seg = ISegment.NLP.factory.create(configForSplit, dic);
+            ISegment seg = splitSegments.poll();
+            if(seg == null)
+                seg = ISegment.NLP.factory.create(configForSplit, dic);
             //ComplexSeg ikseg = new ComplexSeg(JcsegAnalyzer.INSTANCE.getSegmenterConfigForSearch(), JcsegAnalyzer.INSTANCE.getDic());
             //NLPSeg seg = new NLPSeg(this.configForSplit, getDic());
             //DelimiterSeg ikseg = new DelimiterSeg(JcsegAnalyzer.INSTANCE.getSegmenterConfigForSearch(), JcsegAnalyzer.INSTANCE.getDic());
@@ -159,6 +223,10 @@ public class AnalyzerFactory {
                 }
             } catch (IOException e) {
                 log.error("Unable to split keywords", e);
+            } finally {
+                //分词实例在 reset 时会清空上一次的状态，可以直接复用
+                if(splitSegments.size() < MAX_IDLE_SEGMENTS)
+                    splitSegments.offer(seg);
             }
         }
         //去重
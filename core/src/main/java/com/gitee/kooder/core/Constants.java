@@ -107,12 +107,15 @@ public interface Constants {
     String FIELD_CODE_OWNER     = "owner";
     String FIELD_FILE_HASH      = "file.hash";
     String FIELD_SOURCE         = "source";
+    String FIELD_SOURCE_NGRAM   = "source.ngram";   //源码的三元组，用于子串搜索
+    String FIELD_SOURCE_LINES   = "source.lines";   //源码每一行的起始位置，用于代码高亮
 
     String FIELD_RECOMM         = "recomm";
     String FIELD_BLOCK          = "block";
     String FIELD_VISIBILITY     = "visibility";
     String FIELD_LAST_INDEX     = "modified";
     String FIELD_REVISION       = "revision";
+    String FIELD_INDEX_VERSION  = "index.version";  //文件版本 + 文档格式 + 仓库元数据，重建仓库索引时判断文档是否需要重新生成
     String FIELD_SCM            = "scm";
     String FIELD_STATUS         = "status";
     String FIELD_TIMESTAMP      = "timestamp";
@@ -60,6 +60,14 @@ public class KooderConfig {
         return config.properties("storage");
     }
 
+    /**
+     * 搜索配置
+     * @return
+     */
+    public static Properties getSearchProperties() {
+        return config.properties("search");
+    }
+
     /**
      * HTTP 服务配置
      * @return
@@ -16,19 +16,46 @@
 package com.gitee.kooder.core;
 
 import com.gitee.kooder.models.CodeLine;
+import com.gitee.kooder.query.CodeRegexQuery;
 import org.apache.commons.collections.list.SetUniqueList;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.Fields;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Term;
 import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.highlight.*;
+import org.apache.lucene.search.uhighlight.DefaultPassageFormatter;
+import org.apache.lucene.search.uhighlight.LengthGoalBreakIterator;
+import org.apache.lucene.search.uhighlight.PassageFormatter;
+import org.apache.lucene.search.uhighlight.UnifiedHighlighter;
+import org.apache.lucene.search.uhighlight.WholeBreakIterator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.text.BreakIterator;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -46,6 +73,10 @@ public class SearchHelper {
 
     private final static String PATTERN_HIGHLIGHT = "<em class='highlight'>$0</em>";
     private final static Formatter hl_fmt = new SimpleHTMLFormatter("<em class='highlight'>", "</em>");
+    private final static PassageFormatter uh_fmt = new DefaultPassageFormatter("<em class='highlight'>", "</em>", "... ", false);
+    private final static Set<String> SNIPPET_FIELDS = Collections.singleton(Constants.FIELD_DESC);  //按片段高亮的长文本字段
+    private final static int MAX_SNIPPETS = 2;
+    private final static int SNIPPET_LENGTH = 100;  //片段的目标长度（字符数）
 
     /**
      * 关键字切分
@@ -110,6 +141,80 @@ public class SearchHelper {
         return StringUtils.isBlank(result) ? text : result;
     }
 
+    /**
+     * 批量高亮一页搜索结果中的文本字段，偏移位置从词向量中读取
+     * 描述等长文本截取包含关键字的片段，其他字段整体高亮；有词向量但是没有匹配的字段返回原文（长文本只取开头部分）
+     * 没有词向量的文档（旧版本创建的索引）不处理，由调用方逐个文本高亮
+     *
+     * @param searcher
+     * @param query  搜索使用的查询，同一字段的词条才会被高亮
+     * @param fields  要高亮的字段，必须是存储字段
+     * @param docIds
+     * @return 字段名 -> 每个文档的高亮结果（与 docIds 的顺序一致，文档没有词向量时为 null）
+     * @throws IOException
+     */
+    public static Map<String, String[]> highlight(IndexSearcher searcher, Query query, String[] fields, int[] docIds) throws IOException {
+        FieldInfos fieldInfos = FieldInfos.getMergedFieldInfos(searcher.getIndexReader());
+        String[] tvFields = Arrays.stream(fields).filter(f -> {
+            FieldInfo fi = fieldInfos.fieldInfo(f);
+            return fi != null && fi.hasVectors();
+        }).toArray(String[]::new);
+        if(tvFields.length == 0)
+            return Collections.emptyMap();
+        UnifiedHighlighter highlighter = new UnifiedHighlighter(searcher, AnalyzerFactory.getInstance(true)) {
+            @Override
+            protected BreakIterator getBreakIterator(String field) {
+                if(SNIPPET_FIELDS.contains(field))
+                    return LengthGoalBreakIterator.createClosestToLength(BreakIterator.getWordInstance(Locale.ROOT), SNIPPET_LENGTH, 0.5f);
+                return new WholeBreakIterator();
+            }
+        };
+        highlighter.setFormatter(uh_fmt);
+        highlighter.setMaxNoHighlightPassages(0);
+        int[] maxPassages = Arrays.stream(tvFields).mapToInt(f -> SNIPPET_FIELDS.contains(f) ? MAX_SNIPPETS : 1).toArray();
+        Map<String, String[]> highlights = highlighter.highlightFields(tvFields, query, docIds, maxPassages);
+        fillUnmatched(searcher, highlights, docIds);
+        return highlights;
+    }
+
+    /**
+     * 有词向量但是没有匹配关键字的字段使用原文，调用方不需要再重新高亮
+     * @param searcher
+     * @param highlights
+     * @param docIds
+     * @throws IOException
+     */
+    private static void fillUnmatched(IndexSearcher searcher, Map<String, String[]> highlights, int[] docIds) throws IOException {
+        IndexReader reader = searcher.getIndexReader();
+        for(int i = 0; i < docIds.length; i++) {
+            Set<String> unmatched = new HashSet<>();
+            for(Map.Entry<String, String[]> entry : highlights.entrySet())
+                if(entry.getValue()[i] == null)
+                    unmatched.add(entry.getKey());
+            if(unmatched.isEmpty())
+                continue;
+            Fields vectors = reader.getTermVectors(docIds[i]);
+            if(vectors == null)
+                continue;
+            unmatched.removeIf(field -> {
+                try {
+                    return vectors.terms(field) == null;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            if(unmatched.isEmpty())
+                continue;
+            Document doc = searcher.doc(docIds[i], unmatched);
+            for(String field : unmatched) {
+                String text = StringUtils.defaultString(doc.get(field));
+                if(SNIPPET_FIELDS.contains(field))
+                    text = StringUtils.left(text, MAX_SNIPPETS * SNIPPET_LENGTH);
+                highlights.get(field)[i] = text;
+            }
+        }
+    }
+
     /**
      * 对一行代码执行语法高亮处理
      *
@@ -162,6 +267,173 @@ public class SearchHelper {
         return codeLines;
     }
 
+    /**
+     * 标识出源码中匹配正则表达式的行，超出时间预算时只返回已经找到的行
+     *
+     * @param code
+     * @param pattern
+     * @param maxLines
+     * @param budget
+     * @return
+     */
+    public static List<CodeLine> regex_lines(String code, Pattern pattern, int maxLines, CodeRegexQuery.Budget budget) {
+        if(StringUtils.isEmpty(code))
+            return null;
+
+        List<Integer> lineStarts = new ArrayList<>();
+        lineStarts.add(0);
+        for(int i = 0; i < code.length(); i++) {
+            if(code.charAt(i) == '\n')
+                lineStarts.add(i + 1);
+        }
+
+        List<CodeLine> codeLines = new ArrayList<>();
+        List<int[]> ranges = new ArrayList<>();
+        int currentLine = -1;
+        try {
+            Matcher matcher = pattern.matcher(new CodeRegexQuery.DeadlineCharSequence(code, budget));
+            while(matcher.find()) {
+                if(matcher.end() == matcher.start())
+                    continue;
+                int line = Collections.binarySearch(lineStarts, matcher.start());
+                if(line < 0)
+                    line = -line - 2;
+                if(line != currentLine) {
+                    if(currentLine >= 0)
+                        codeLines.add(regex_line(code, lineStarts, currentLine, ranges));
+                    ranges.clear();
+                    currentLine = -1;
+                    if(codeLines.size() >= maxLines)
+                        break;
+                    currentLine = line;
+                }
+                ranges.add(new int[]{matcher.start(), matcher.end()});
+            }
+        } catch (CodeRegexQuery.BudgetExceededException e) {
+            log.warn("Regex highlight time budget exceeded: " + pattern.pattern());
+        }
+        if(currentLine >= 0)
+            codeLines.add(regex_line(code, lineStarts, currentLine, ranges));
+
+        return codeLines;
+    }
+
+    /**
+     * 根据词条在索引中的偏移位置标识出源码中的关键字，不需要扫描整个文件
+     * 只有精确匹配的词条有偏移位置，没有找到时（旧的索引段没有偏移位置、关键字只是前缀等）返回 null，由调用者使用 hl_lines
+     *
+     * @param reader  文档所在的索引段
+     * @param docId  文档在索引段中的编号
+     * @param code  索引时的源码
+     * @param lineStarts  每一行的起始位置
+     * @param terms  关键字的分词结果
+     * @param maxLines
+     * @return
+     * @throws IOException
+     */
+    public static List<CodeLine> offset_lines(LeafReader reader, int docId, String code, int[] lineStarts,
+                                              Collection<String> terms, int maxLines) throws IOException {
+        if(StringUtils.isEmpty(code) || lineStarts == null || lineStarts.length == 0)
+            return null;
+        FieldInfo fieldInfo = reader.getFieldInfos().fieldInfo(Constants.FIELD_SOURCE);
+        if(fieldInfo == null || fieldInfo.getIndexOptions().compareTo(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS) < 0)
+            return null;
+
+        List<int[]> ranges = new ArrayList<>();
+        for(String term : terms) {
+            PostingsEnum postings = reader.postings(new Term(Constants.FIELD_SOURCE, term), PostingsEnum.OFFSETS);
+            if(postings == null || postings.advance(docId) != docId)
+                continue;
+            //偏移位置按先后顺序读取，每个词条最多只需要读到第 maxLines 个不同的行
+            int lines = 0, lastLine = -1;
+            for(int i = 0; i < postings.freq(); i++) {
+                postings.nextPosition();
+                int start = postings.startOffset(), end = postings.endOffset();
+                if(start < 0 || end > code.length() || start >= end)
+                    continue;
+                int line = lineOf(lineStarts, start);
+                if(line != lastLine && ++lines > maxLines)
+                    break;
+                lastLine = line;
+                ranges.add(new int[]{start, end});
+            }
+        }
+        if(ranges.isEmpty())
+            return null;
+        ranges.sort(Comparator.comparingInt(r -> r[0]));
+
+        List<CodeLine> codeLines = new ArrayList<>();
+        List<int[]> lineRanges = new ArrayList<>();
+        int currentLine = -1;
+        for(int[] range : ranges) {
+            int line = lineOf(lineStarts, range[0]);
+            if(line != currentLine) {
+                if(currentLine >= 0)
+                    codeLines.add(code_line(code, lineStarts, currentLine, lineRanges));
+                lineRanges.clear();
+                currentLine = -1;
+                if(codeLines.size() >= maxLines)
+                    break;
+                currentLine = line;
+            }
+            lineRanges.add(range);
+        }
+        if(currentLine >= 0)
+            codeLines.add(code_line(code, lineStarts, currentLine, lineRanges));
+
+        //补充点内容，免得看起来太干巴
+        int minLines = maxLines / 3 ;
+        for(int line = codeLines.get(codeLines.size() - 1).getLine(); line < lineStarts.length && codeLines.size() < minLines; line++)
+            codeLines.add(code_line(code, lineStarts, line, Collections.emptyList()));
+
+        return codeLines;
+    }
+
+    private static int lineOf(int[] lineStarts, int offset) {
+        int line = Arrays.binarySearch(lineStarts, offset);
+        return (line < 0) ? -line - 2 : line;
+    }
+
+    /**
+     * 高亮一行代码中所有匹配的部分，跨行的匹配只高亮第一行
+     */
+    private static CodeLine regex_line(String code, List<Integer> lineStarts, int line, List<int[]> ranges) {
+        int start = lineStarts.get(line);
+        int end = (line + 1 < lineStarts.size()) ? lineStarts.get(line + 1) - 1 : code.length();
+        return code_line(code, start, end, line, ranges);
+    }
+
+    private static CodeLine code_line(String code, int[] lineStarts, int line, List<int[]> ranges) {
+        int start = lineStarts[line];
+        int end = (line + 1 < lineStarts.length) ? lineStarts[line + 1] - 1 : code.length();
+        return code_line(code, start, Math.min(end, code.length()), line, ranges);
+    }
+
+    /**
+     * 生成一行代码的 HTML，ranges 按起始位置排序
+     */
+    private static CodeLine code_line(String code, int start, int end, int line, List<int[]> ranges) {
+        if(end > start && code.charAt(end - 1) == '\r')
+            end--;
+        int limit = Math.min(end, start + MAX_LINE_LENGTH);
+
+        StringBuilder html = new StringBuilder();
+        int pos = start;
+        for(int[] range : ranges) {
+            int rangeStart = Math.max(range[0], pos);
+            int rangeEnd = Math.min(range[1], limit);
+            if(rangeStart >= rangeEnd)
+                continue;
+            html.append(html(code.substring(pos, rangeStart)));
+            html.append("<em class='highlight'>").append(html(code.substring(rangeStart, rangeEnd))).append("</em>");
+            pos = rangeEnd;
+        }
+        html.append(html(code.substring(pos, limit)));
+        if(limit < end)
+            html.append("...");
+        return new CodeLine(line + 1, html.toString());
+    }
+
     /**
      * 格式化HTML文本
      *
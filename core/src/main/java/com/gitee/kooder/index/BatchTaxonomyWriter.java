@@ -0,0 +1,90 @@
+/**
+ * Copyright (c) 2021, OSChina (oschina.net@gmail.com).
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitee.kooder.index;
+
+import org.apache.lucene.facet.taxonomy.FacetLabel;
+import org.apache.lucene.facet.taxonomy.TaxonomyWriter;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 批量写入文档时使用的 TaxonomyWriter，在一批文档中缓存 label → ordinal
+ * 同一批文档中重复的分类（仓库名、语言等）只需要访问一次共享的 TaxonomyWriter，减少多个索引线程之间的锁竞争
+ * 只用于 FacetsConfig.build 构建文档，不能提交或者关闭，也不能在多个线程之间共享
+ */
+public class BatchTaxonomyWriter implements TaxonomyWriter {
+
+    private final TaxonomyWriter writer;
+    private final Map<FacetLabel, Integer> ordinals = new HashMap<>();
+
+    public BatchTaxonomyWriter(TaxonomyWriter writer) {
+        this.writer = writer;
+    }
+
+    @Override
+    public int addCategory(FacetLabel categoryPath) throws IOException {
+        Integer ordinal = ordinals.get(categoryPath);
+        if(ordinal == null) {
+            ordinal = writer.addCategory(categoryPath);
+            ordinals.put(categoryPath, ordinal);
+        }
+        return ordinal;
+    }
+
+    @Override
+    public int getParent(int ordinal) throws IOException {
+        return writer.getParent(ordinal);
+    }
+
+    @Override
+    public int getSize() {
+        return writer.getSize();
+    }
+
+    @Override
+    public void setLiveCommitData(Iterable<Map.Entry<String, String>> commitUserData) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Iterable<Map.Entry<String, String>> getLiveCommitData() {
+        return writer.getLiveCommitData();
+    }
+
+    @Override
+    public long prepareCommit() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long commit() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void rollback() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * 共享的 TaxonomyWriter 由 StorageFactory 管理，这里什么都不做
+     */
+    @Override
+    public void close() {
+    }
+}
@@ -16,11 +16,13 @@
 package com.gitee.kooder.index;
 
 import com.gitee.kooder.core.Constants;
+import com.gitee.kooder.models.DocValuesPatch;
 import com.gitee.kooder.models.Repository;
 import com.gitee.kooder.models.Searchable;
 import com.gitee.kooder.queue.QueueTask;
 import com.gitee.kooder.storage.StorageFactory;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
 import org.apache.lucene.document.LongPoint;
 import org.apache.lucene.document.NumericDocValuesField;
 import org.apache.lucene.facet.*;
@@ -45,18 +47,9 @@ public class IndexManager {
 
     private final static Logger log = LoggerFactory.getLogger(IndexManager.class);
 
-    public final static int SEARCH_THREAD_COUNT = 10; //并发搜索线程数
-
     public final static String KEY_SCORE = "_score_"; //在 json 中存放文档的score值
     public final static String KEY_DOC_ID = "_id_"; //在 json 中存放文档的 id
 
-    //private final static int maxNumberOfCachedQueries = 256;
-    //private final static long maxRamBytesUsed = 50 * 1024L * 1024L; // 50MB
-    // these cache and policy instances can be shared across several queries and readers
-    // it is fine to eg. store them into static variables
-    //private final static QueryCache queryCache = new LRUQueryCache(maxNumberOfCachedQueries, maxRamBytesUsed);
-    //private final static QueryCachingPolicy defaultCachingPolicy = new UsageTrackingQueryCachingPolicy();
-
     public final static FacetsConfig facetsConfig = new FacetsConfig();
 
     /**
@@ -65,12 +58,9 @@ public class IndexManager {
      * @exception
      */
     public static int write(QueueTask task) throws IOException {
-        try (
-            IndexWriter writer = StorageFactory.getIndexWriter(task.getType());
-            TaxonomyWriter taxonomyWriter = StorageFactory.getTaxonomyWriter(task.getType());
-        ) {
-            return write(task, writer, taxonomyWriter);
-        }
+        IndexWriter writer = StorageFactory.getIndexWriter(task.getType());
+        TaxonomyWriter taxonomyWriter = StorageFactory.getTaxonomyWriter(task.getType());
+        return write(task, writer, taxonomyWriter);
     }
 
     /**
@@ -82,7 +72,8 @@ public class IndexManager {
      * @throws IOException
      */
     public static int write(QueueTask task, IndexWriter i_writer, TaxonomyWriter t_writer) throws IOException {
-        if(task.getObjects() == null || task.getObjects().size() == 0)
+        int count = task.getObjectIds().size();
+        if(count == 0)
             return 0;
         switch (task.getAction()) {
             case QueueTask.ACTION_ADD:
@@ -90,6 +81,14 @@ public class IndexManager {
                 List<Document> docs = task.getObjects().stream().map(o -> o.getDocument()).collect(Collectors.toList());
                 update(docs, i_writer, t_writer);
                 break;
+            case QueueTask.ACTION_PATCH:
+                //只更新数值字段，不重新分析文档，也不会产生被删除的旧文档
+                for(DocValuesPatch patch : task.getPatches()) {
+                    Field[] fields = patch.getDocValuesFields(task.getType());
+                    if(fields.length > 0)
+                        i_writer.updateDocValues(new Term(FIELD_ID, String.valueOf(patch.getId())), fields);
+                }
+                break;
             case QueueTask.ACTION_DELETE:
                 List<Long> objects = task.getObjects().stream().map(o -> o.getId()).collect(Collectors.toList());
                 Query[] queries = objects.stream().map(id -> NumericDocValuesField.newSlowExactQuery(FIELD_ID, id)).toArray(Query[]::new);
@@ -103,21 +102,59 @@ public class IndexManager {
                 log.info("Documents['{}'] {} deleted.", task.getType(), objects);
                 // Delete repository need to delete it's related issues and codes
                 if(repos.size() > 0) {
+                    Query[] r_querys = repos.stream().map(id -> LongPoint.newExactQuery(Constants.FIELD_REPO_ID, id)).toArray(Query[]::new);
                     // Delete issues of this repository
-                    try (IndexWriter issues = StorageFactory.getIndexWriter(Constants.TYPE_ISSUE)) {
-                        Query[] i_querys = repos.stream().map(id -> LongPoint.newExactQuery(Constants.FIELD_REPO_ID, id)).toArray(Query[]::new);
-                        issues.deleteDocuments(i_querys);
-                        log.info("Issues of repositories : {} deleted.", repos);
-                    }
+                    StorageFactory.getIndexWriter(Constants.TYPE_ISSUE).deleteDocuments(r_querys);
+                    StorageFactory.markChanged(Constants.TYPE_ISSUE, repos.size());
+                    log.info("Issues of repositories : {} deleted.", repos);
                     // Delete code repositories
-                    try (IndexWriter codes = StorageFactory.getIndexWriter(Constants.TYPE_CODE)) {
-                        Query[] i_querys = repos.stream().map(id -> LongPoint.newExactQuery(Constants.FIELD_REPO_ID, id)).toArray(Query[]::new);
-                        codes.deleteDocuments(i_querys);
-                        log.info("Codes of repositories : {} deleted.", repos);
-                    }
+                    StorageFactory.getIndexWriter(Constants.TYPE_CODE).deleteDocuments(r_querys);
+                    StorageFactory.markChanged(Constants.TYPE_CODE, repos.size());
+                    log.info("Codes of repositories : {} deleted.", repos);
                 }
         }
-        return task.getObjects().size();
+        StorageFactory.markChanged(task.getType(), count);
+        return count;
+    }
+
+    /**
+     * 批量写入同一类型的任务，连续的添加、修改任务中的文档合并成一批写入，删除任务按原来的顺序执行
+     * @param tasks
+     * @param i_writer
+     * @param t_writer
+     * @return 处理的对象数
+     * @throws IOException
+     */
+    public static int writeBatch(List<QueueTask> tasks, IndexWriter i_writer, TaxonomyWriter t_writer) throws IOException {
+        int count = 0;
+        String type = null;
+        List<Document> docs = new ArrayList<>();
+        for(QueueTask task : tasks) {
+            if(task.getObjectIds().isEmpty())
+                continue;
+            switch (task.getAction()) {
+                case QueueTask.ACTION_ADD:
+                case QueueTask.ACTION_UPDATE:
+                    task.getObjects().forEach(o -> docs.add(o.getDocument()));
+                    type = task.getType();
+                    break;
+                default:
+                    count += flush(type, docs, i_writer, t_writer);
+                    count += write(task, i_writer, t_writer);
+            }
+        }
+        count += flush(type, docs, i_writer, t_writer);
+        return count;
+    }
+
+    private static int flush(String type, List<Document> docs, IndexWriter i_writer, TaxonomyWriter t_writer) throws IOException {
+        if(docs.isEmpty())
+            return 0;
+        int count = (int)update(docs, i_writer, t_writer);
+        if(count > 0)
+            StorageFactory.markChanged(type, count);
+        docs.clear();
+        return count;
     }
 
     /**
@@ -128,35 +165,52 @@ public class IndexManager {
      * @throws IOException
      */
     public static long add(String type, List<Document> docs) throws IOException {
-        if(docs != null && docs.size() > 0)
-            try (
-                IndexWriter writer = StorageFactory.getIndexWriter(type);
-                TaxonomyWriter taxonomyWriter = StorageFactory.getTaxonomyWriter(type);
-            ) {
-                return update(docs, writer, taxonomyWriter);
-            }
+        if(docs != null && docs.size() > 0) {
+            IndexWriter writer = StorageFactory.getIndexWriter(type);
+            TaxonomyWriter taxonomyWriter = StorageFactory.getTaxonomyWriter(type);
+            long count = update(docs, writer, taxonomyWriter);
+            if(count > 0)
+                StorageFactory.markChanged(type, (int)count);
+            return count;
+        }
         return 0;
     }
 
     /**
-     * 更新文档
+     * 更新文档，同一批文档共享分类的 ordinal 缓存，单个文档写入失败不影响其他文档
      * @param docs
      * @param i_writer
      * @param t_writer
-     * @return
+     * @return 成功写入的文档数
      * @throws IOException
      */
     public static long update(List<Document> docs, IndexWriter i_writer, TaxonomyWriter t_writer) throws IOException {
+        TaxonomyWriter taxonomyWriter = new BatchTaxonomyWriter(t_writer);
+        long count = 0;
         for(Document doc : docs) {
-            try {
-                i_writer.updateDocument(new Term(FIELD_ID, doc.get(FIELD_ID)), buildFacetDocument(t_writer, doc));
-            } catch ( IllegalArgumentException e) {
-                //FIXME 暂时先用这种方法来解决 jcseg 异常的问题
-                doc.removeField(Constants.FIELD_DESC);
-                i_writer.updateDocument(new Term(FIELD_ID, doc.get(FIELD_ID)), buildFacetDocument(t_writer, doc));
-            }
+            if(update(doc, i_writer, taxonomyWriter))
+                count ++;
+        }
+        return count;
+    }
+
+    /**
+     * 更新单个文档
+     * @param doc
+     * @param i_writer
+     * @param t_writer
+     * @return 文档无法写入时返回 false
+     * @throws IOException
+     */
+    private static boolean update(Document doc, IndexWriter i_writer, TaxonomyWriter t_writer) throws IOException {
+        Term term = new Term(FIELD_ID, doc.get(FIELD_ID));
+        try {
+            i_writer.updateDocument(term, buildFacetDocument(t_writer, doc));
+            return true;
+        } catch ( IllegalArgumentException e) {
+            log.error("Failed to write document<id=" + doc.get(FIELD_ID) + ">", e);
+            return false;
         }
-        return docs.size();
     }
 
     /**
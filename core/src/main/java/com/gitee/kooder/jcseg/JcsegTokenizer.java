@@ -50,6 +50,13 @@ public class JcsegTokenizer extends Tokenizer
      * like the Array field in Elasticsearch or Solr
     */
     private int fieldOffset = 0;
+
+    /**
+     * start offset of the last token, jcseg may return the appended words
+     * (synonyms, pinyin) with a position before the last one, lucene rejects
+     * the offsets going backwards with an IllegalArgumentException
+    */
+    private int lastStartOffset = 0;
     
     public JcsegTokenizer(
         ISegment.Type type,
@@ -74,11 +81,13 @@ public class JcsegTokenizer extends Tokenizer
         // char[] token = word.getValue().toCharArray();
         // termAtt.copyBuffer(token, 0, token.length);
         termAtt.append(word.getValue());
-        termAtt.setLength(word.getLength());
-        offsetAtt.setOffset(
-        	correctOffset(fieldOffset + word.getPosition()), 
-        	correctOffset(fieldOffset + word.getPosition() + word.getLength())
-        );
+        termAtt.setLength(Math.min(word.getLength(), termAtt.length()));
+        final int startOffset = Math.max(
+            correctOffset(fieldOffset + Math.max(word.getPosition(), 0)), lastStartOffset);
+        final int endOffset = Math.max(
+            correctOffset(fieldOffset + Math.max(word.getPosition(), 0) + word.getLength()), startOffset);
+        offsetAtt.setOffset(startOffset, endOffset);
+        lastStartOffset = startOffset;
         typeAtt.setType("word");
         
         return true;
@@ -99,6 +108,9 @@ public class JcsegTokenizer extends Tokenizer
         super.reset();
         segmentor.reset(input);
         offsetAtt.setOffset(0, 0);
+        /* the stream may be reused without end() after a failure */
+        fieldOffset = 0;
+        lastStartOffset = 0;
     }
     
 }
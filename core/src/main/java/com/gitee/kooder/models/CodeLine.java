@@ -15,12 +15,16 @@
  */
 package com.gitee.kooder.models;
 
+import java.io.Serializable;
+
 /**
  * Code Line
  * used to show results of code search
  * @author Winter Lau<javayou@gmail.com>
  */
-public class CodeLine {
+public class CodeLine implements Serializable {
+
+    private final static long serialVersionUID = 1L;
 
     private int line;       //Line num
     private String code;    //Code
@@ -0,0 +1,103 @@
+/**
+ * Copyright (c) 2021, OSChina (oschina.net@gmail.com).
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitee.kooder.models;
+
+import com.fasterxml.jackson.annotation.JsonAnyGetter;
+import com.fasterxml.jackson.annotation.JsonAnySetter;
+import com.gitee.kooder.core.Constants;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericDocValuesField;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * 部分更新任务的对象：只修改文档中的数值字段（star 数、推荐级别、Gitee 指数等）
+ * 直接更新索引中的 doc values，不需要重新分析整个文档；字段名使用索引中的字段名，例如：
+ * {"id": 123, "starCount": 1024, "recomm": 2}
+ * 不是完整的 Searchable 对象，通过 QueueTask.getPatches 传递
+ */
+public class DocValuesPatch implements Serializable {
+
+    private final static long serialVersionUID = 1L;
+
+    private final static Map<String, Set<String>> PATCHABLE_FIELDS = new HashMap<String, Set<String>>(){{
+        put(Constants.TYPE_REPOSITORY, new HashSet<>(Arrays.asList(
+                Constants.FIELD_RECOMM, Constants.FIELD_G_INDEX, Constants.FIELD_BLOCK,
+                Constants.FIELD_STAR_COUNT, Constants.FIELD_FORK_COUNT,
+                Constants.FIELD_CREATED_AT, Constants.FIELD_UPDATED_AT)));
+        put(Constants.TYPE_ISSUE, new HashSet<>(Arrays.asList(
+                Constants.FIELD_CREATED_AT, Constants.FIELD_UPDATED_AT, Constants.FIELD_CLOSED_AT)));
+    }};
+
+    private long id;    //要更新的文档对应的对象 id
+    private Map<String, Long> values = new LinkedHashMap<>();
+
+    /**
+     * 某个类型的文档中可以部分更新的字段
+     * @param type
+     * @return
+     */
+    public static Set<String> getPatchableFields(String type) {
+        return PATCHABLE_FIELDS.getOrDefault(type, Collections.emptySet());
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
+    @JsonAnySetter
+    public void setValue(String field, Object value) {
+        if(value instanceof Number)
+            values.put(field, ((Number)value).longValue());
+        else if(value != null && NumberUtils.isCreatable(value.toString()))
+            values.put(field, NumberUtils.createNumber(value.toString()).longValue());
+        else
+            throw new IllegalArgumentException("Illegal value of field '" + field + "': " + value);
+    }
+
+    @JsonAnyGetter
+    public Map<String, Long> getValues() {
+        return values;
+    }
+
+    /**
+     * 生成用于 IndexWriter.updateDocValues 的字段
+     * @param type  文档类型
+     * @return
+     * @exception IllegalArgumentException 包含该类型不能部分更新的字段
+     */
+    public Field[] getDocValuesFields(String type) {
+        Set<String> patchable = getPatchableFields(type);
+        List<Field> fields = new ArrayList<>();
+        values.forEach((field, value) -> {
+            if(!patchable.contains(field))
+                throw new IllegalArgumentException("Field '" + field + "' of " + type + " can't be patched, available fields: " + patchable);
+            fields.add(new NumericDocValuesField(field, value));
+        });
+        return fields.toArray(new Field[0]);
+    }
+
+    @Override
+    public String toString() {
+        return "DocValuesPatch{id=" + id + ", values=" + values + '}';
+    }
+}
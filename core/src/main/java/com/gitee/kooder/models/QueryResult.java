@@ -15,12 +15,18 @@
  */
 package com.gitee.kooder.models;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
 import com.gitee.kooder.core.Constants;
 import com.gitee.kooder.utils.JsonUtils;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.facet.LabelAndValue;
 import org.apache.lucene.search.ScoreDoc;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -30,17 +36,21 @@ import java.util.TreeMap;
  * lucene search result object
  * @author Winter Lau<javayou@gmail.com>
  */
-public class QueryResult {
+public class QueryResult implements Serializable {
+
+    private final static long serialVersionUID = 1L;
 
     private String type;
     private int totalHits;
     private int totalPages;
-    private int pageIndex;
+    private Integer pageIndex;  //使用游标分页时无法确定页码，为 null
     private int pageSize;
     private long timeUsed;
     private String query;
+    private String cursor;      //cursor of next page
+    private Boolean truncated;  //true if search stopped early and results may be incomplete
     private List<Searchable> objects;
-    private Map<String,List<LabelAndValue>> facets;
+    private transient Map<String,List<LabelAndValue>> facets; //LabelAndValue isn't serializable, see writeObject
 
     public QueryResult(String type) {
         this.type = type;
@@ -90,6 +100,31 @@ public class QueryResult {
         return this.json();
     }
 
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(facets.size());
+        for(Map.Entry<String, List<LabelAndValue>> facet : facets.entrySet()) {
+            out.writeObject(facet.getKey());
+            out.writeInt(facet.getValue().size());
+            for(LabelAndValue lav : facet.getValue()) {
+                out.writeObject(lav.label);
+                out.writeObject(lav.value);
+            }
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        this.facets = new TreeMap<>();
+        int facetCount = in.readInt();
+        for(int i = 0; i < facetCount; i++) {
+            String facetName = (String) in.readObject();
+            int valueCount = in.readInt();
+            for(int j = 0; j < valueCount; j++)
+                addFacet(facetName, new LabelAndValue((String) in.readObject(), (Number) in.readObject()));
+        }
+    }
+
     public String getType() {
         return type;
     }
@@ -114,11 +149,11 @@ public class QueryResult {
         this.totalPages = totalPages;
     }
 
-    public int getPageIndex() {
+    public Integer getPageIndex() {
         return pageIndex;
     }
 
-    public void setPageIndex(int pageIndex) {
+    public void setPageIndex(Integer pageIndex) {
         this.pageIndex = pageIndex;
     }
 
@@ -146,6 +181,28 @@ public class QueryResult {
         this.query = query;
     }
 
+    public String getCursor() {
+        return cursor;
+    }
+
+    public void setCursor(String cursor) {
+        this.cursor = cursor;
+    }
+
+    @JsonProperty
+    public Boolean getTruncated() {
+        return truncated;
+    }
+
+    @JsonIgnore
+    public boolean isTruncated() {
+        return Boolean.TRUE.equals(truncated);
+    }
+
+    public void setTruncated(boolean truncated) {
+        this.truncated = truncated ? Boolean.TRUE : null;
+    }
+
     public List<Searchable> getObjects() {
         return objects;
     }
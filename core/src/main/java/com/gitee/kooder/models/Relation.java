@@ -15,11 +15,15 @@
  */
 package com.gitee.kooder.models;
 
+import java.io.Serializable;
+
 /**
  * Relation info
  * @author Winter Lau<javayou@gmail.com>
  */
-public final class Relation {
+public final class Relation implements Serializable {
+
+    private final static long serialVersionUID = 1L;
 
     protected long id;
     protected String name;
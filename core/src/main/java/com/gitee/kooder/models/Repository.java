@@ -96,11 +96,11 @@ public final class Repository extends Searchable {
     @JsonIgnore
     public Document getDocument() {
         Document doc = super.newDocument();
-        doc.add(new TextField(Constants.FIELD_NAME,     this.getName(),         Field.Store.YES));
+        doc.add(new Field(Constants.FIELD_NAME,         this.getName(),         HIGHLIGHT_TEXT_TYPE));
         if(StringUtils.isNotBlank(this.getDisplayName()))
             doc.add(new StringField(Constants.FIELD_DISPLAY_NAME, this.getDisplayName(), Field.Store.YES));
         if(StringUtils.isNotBlank(this.getDescription()))
-            doc.add(new TextField(Constants.FIELD_DESC,     this.getDescription(),  Field.Store.YES));
+            doc.add(new Field(Constants.FIELD_DESC,     this.getDescription(),  HIGHLIGHT_TEXT_TYPE));
         if(StringUtils.isNotBlank(this.getUrl()))
             doc.add(new StoredField(Constants.FIELD_URL,    this.getUrl()));
 
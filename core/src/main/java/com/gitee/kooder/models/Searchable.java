@@ -21,6 +21,7 @@ import org.apache.lucene.document.*;
 import org.apache.lucene.facet.FacetField;
 
 import java.io.Serializable;
+import java.util.Map;
 
 /**
  * Searchable object
@@ -28,9 +29,20 @@ import java.io.Serializable;
  */
 public abstract class Searchable implements Serializable {
 
+    //需要高亮显示的文本字段，保存词向量和偏移位置，高亮时不需要重新分词
+    public final static FieldType HIGHLIGHT_TEXT_TYPE = new FieldType(TextField.TYPE_STORED);
+
+    static {
+        HIGHLIGHT_TEXT_TYPE.setStoreTermVectors(true);
+        HIGHLIGHT_TEXT_TYPE.setStoreTermVectorPositions(true);
+        HIGHLIGHT_TEXT_TYPE.setStoreTermVectorOffsets(true);
+        HIGHLIGHT_TEXT_TYPE.freeze();
+    }
+
     protected long id;      // object id , ex: repo id, issue id
     protected int _doc_id;      // document id
     protected float _doc_score; // document score
+    protected Map<String, String> highlights;   // highlighted html of fields
 
     public long getId() {
         return id;
@@ -56,6 +68,18 @@ public abstract class Searchable implements Serializable {
         this._doc_score = _doc_score;
     }
 
+    /**
+     * 搜索时高亮处理过的字段内容（字段名 -> HTML），没有匹配的字段不包含在内
+     * @return
+     */
+    public Map<String, String> getHighlights() {
+        return highlights;
+    }
+
+    public void setHighlights(Map<String, String> highlights) {
+        this.highlights = highlights;
+    }
+
     protected Document newDocument() {
         Document doc = new Document();
         doc.add(new NumericDocValuesField(Constants.FIELD_ID, id));
@@ -16,11 +16,17 @@
 package com.gitee.kooder.models;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.gitee.kooder.code.TrigramAnalyzer;
+import com.gitee.kooder.core.AnalyzerFactory;
 import com.gitee.kooder.core.Constants;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.math.NumberUtils;
 import org.apache.lucene.document.*;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
 
 import java.nio.charset.StandardCharsets;
 import java.util.List;
@@ -31,6 +37,17 @@ import java.util.List;
  */
 public final class SourceFile extends Searchable {
 
+    //源码字段在索引中保存词条的偏移位置，高亮时直接定位关键字
+    public final static FieldType SOURCE_FIELD_TYPE = new FieldType(TextField.TYPE_STORED);
+
+    static {
+        SOURCE_FIELD_TYPE.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS);
+        SOURCE_FIELD_TYPE.freeze();
+    }
+
+    //文档格式的版本，索引字段或者分词方式变化时加一，重建仓库索引时格式不同的文档会重新生成
+    private final static int DOC_FORMAT_VERSION = 1;
+
     private String vender;          // gitee,gitlab or gitea, using this field to indentify file url
     private String uuid;            // file unique identify
     private int enterprise;         // enterprise
@@ -54,6 +71,7 @@ public final class SourceFile extends Searchable {
     private String revision;        // last commit id
 
     private List<CodeLine> result;  // code lines with keyword highlight
+    private transient int[] lineStarts; // start offset of each line in contents
 
     public SourceFile() {
     }
@@ -102,6 +120,7 @@ public final class SourceFile extends Searchable {
         this.url = doc.get(Constants.FIELD_URL);
         this.location = doc.get(Constants.FIELD_FILE_LOCATION);
         this.contents = doc.get(Constants.FIELD_SOURCE);
+        this.lineStarts = decodeLineStarts(doc.getBinaryValue(Constants.FIELD_SOURCE_LINES));
         this.hash = doc.get(Constants.FIELD_FILE_HASH);
         this.codeOwner = doc.get(Constants.FIELD_CODE_OWNER);
         this.language = doc.get(Constants.FIELD_LANGUAGE);
@@ -128,6 +147,7 @@ public final class SourceFile extends Searchable {
         document.add(new StoredField(Constants.FIELD_VENDER,    this.vender));
         // Uuid is the primary key for documents
         document.add(new StringField(Constants.FIELD_UUID,      this.uuid,   Field.Store.YES));
+        document.add(new SortedDocValuesField(Constants.FIELD_UUID, new BytesRef(this.uuid)));
 
         if(StringUtils.isNotBlank(this.branch))
             document.add(new StringField(Constants.FIELD_BRANCH,this.branch, Field.Store.YES));
@@ -160,7 +180,14 @@ public final class SourceFile extends Searchable {
                 source = new String(bytes, 0, 32766, StandardCharsets.UTF_8);
                 source = StringUtils.abbreviate(source, source.length() - 3);
             }
-            document.add(new TextField(Constants.FIELD_SOURCE, source , Field.Store.YES));
+            if(AnalyzerFactory.isCodeOffsetsEnabled()) {
+                document.add(new Field(Constants.FIELD_SOURCE, source, SOURCE_FIELD_TYPE));
+                document.add(new StoredField(Constants.FIELD_SOURCE_LINES, encodeLineStarts(source)));
+            }
+            else
+                document.add(new TextField(Constants.FIELD_SOURCE, source , Field.Store.YES));
+            if(AnalyzerFactory.isCodeNGramEnabled())
+                document.add(new Field(Constants.FIELD_SOURCE_NGRAM, source, TrigramAnalyzer.FIELD_TYPE));
             //文件属性
             document.add(new StoredField(Constants.FIELD_FILE_HASH, this.getHash()));
         }
@@ -173,6 +200,9 @@ public final class SourceFile extends Searchable {
         document.add(new StoredField(Constants.FIELD_COMPLEXITY,    this.getComplexity()));
 
         document.add(new StringField(Constants.FIELD_REVISION,      this.getRevision(),     Field.Store.YES));
+        //重建索引时通过 doc values 读取已索引文档的版本，跳过没有变化的文件
+        if(StringUtils.isNotBlank(this.getRevision()))
+            document.add(new SortedDocValuesField(Constants.FIELD_INDEX_VERSION, new BytesRef(this.getIndexVersion())));
 
         // Extra metadata in this case when it was last indexed
         long indexTime = System.currentTimeMillis();
@@ -181,6 +211,44 @@ public final class SourceFile extends Searchable {
         return document;
     }
 
+    /**
+     * 每一行的起始位置，按与上一行的差值以 VInt 格式保存
+     * @param source
+     * @return
+     */
+    private static BytesRef encodeLineStarts(String source) {
+        byte[] bytes = new byte[64];
+        int length = 0, last = 0;
+        for(int i = 0; i < source.length(); i++) {
+            if(source.charAt(i) != '\n')
+                continue;
+            int delta = i + 1 - last;
+            last = i + 1;
+            bytes = ArrayUtil.grow(bytes, length + 5);
+            while((delta & ~0x7F) != 0) {
+                bytes[length++] = (byte)((delta & 0x7F) | 0x80);
+                delta >>>= 7;
+            }
+            bytes[length++] = (byte)delta;
+        }
+        return new BytesRef(bytes, 0, length);
+    }
+
+    /**
+     * @param bytes
+     * @return 旧的索引中没有该字段时返回 null
+     */
+    private static int[] decodeLineStarts(BytesRef bytes) {
+        if(bytes == null)
+            return null;
+        ByteArrayDataInput in = new ByteArrayDataInput(bytes.bytes, bytes.offset, bytes.length);
+        int[] starts = new int[Math.max(bytes.length, 1) + 1];   //每个差值至少占一个字节
+        int count = 1;
+        while(!in.eof())
+            starts[count] = starts[count++ - 1] + in.readVInt();
+        return ArrayUtil.copyOfSubArray(starts, 0, count);
+    }
+
     public String getVender() {
         return vender;
     }
@@ -317,6 +385,19 @@ public final class SourceFile extends Searchable {
         this.revision = revision;
     }
 
+    /**
+     * 文档的索引版本，由文件版本、文档格式（是否有三元组、偏移位置）以及仓库的元数据组成
+     * 任何一项发生变化时，重建仓库索引都需要重新生成文档
+     * @return
+     */
+    @JsonIgnore
+    public String getIndexVersion() {
+        String format = String.format("%d-%b-%b-%s-%d-%s-%s", DOC_FORMAT_VERSION,
+                AnalyzerFactory.isCodeNGramEnabled(), AnalyzerFactory.isCodeOffsetsEnabled(),
+                vender, enterprise, repository.url, branch);
+        return revision + "@" + DigestUtils.sha1Hex(format);
+    }
+
     public int getEnterprise() {
         return enterprise;
     }
@@ -332,4 +413,9 @@ public final class SourceFile extends Searchable {
     public void setResult(List<CodeLine> result) {
         this.result = result;
     }
+
+    @JsonIgnore
+    public int[] getLineStarts() {
+        return lineStarts;
+    }
 }
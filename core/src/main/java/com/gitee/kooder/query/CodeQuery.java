@@ -17,7 +17,16 @@ package com.gitee.kooder.query;
 
 import com.gitee.kooder.core.AnalyzerFactory;
 import com.gitee.kooder.core.Constants;
+import com.gitee.kooder.core.KooderConfig;
+import com.gitee.kooder.core.SearchHelper;
+import com.gitee.kooder.models.CodeLine;
+import com.gitee.kooder.models.QueryResult;
+import com.gitee.kooder.models.Searchable;
+import com.gitee.kooder.models.SourceFile;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.*;
 import org.apache.lucene.search.spans.SpanMultiTermQueryWrapper;
@@ -25,8 +34,11 @@ import org.apache.lucene.search.spans.SpanNearQuery;
 import org.apache.lucene.search.spans.SpanQuery;
 import org.apache.lucene.search.spans.SpanTermQuery;
 
+import java.io.IOException;
 import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * 源码搜索
@@ -34,6 +46,47 @@ import java.util.List;
  */
 public class CodeQuery extends QueryBase {
 
+    private final static int MAX_TRIGRAMS = 64; //子串查询最多使用的三元组个数
+
+    private final static long REGEX_TIME_BUDGET_MS = NumberUtils.toLong(KooderConfig.getSearchProperties().getProperty("regex.time_budget_ms"), 2000);
+    private final static int REGEX_MAX_CANDIDATES = NumberUtils.toInt(KooderConfig.getSearchProperties().getProperty("regex.max_candidates"), 10000);
+
+    private boolean regex = false;              // Search key is a regular expression
+    private CodeRegexQuery regexQuery;          // Last regex query, used to check whether the result is complete
+    private int highlightLines = 0;             // Max highlight code lines of each file, 0 to disable
+
+    /**
+     * 使用正则表达式搜索源码
+     * @param regex
+     * @return
+     */
+    public CodeQuery setRegex(boolean regex) {
+        this.regex = regex;
+        return this;
+    }
+
+    public boolean isRegex() {
+        return regex;
+    }
+
+    /**
+     * 搜索时同时标识出每个文件中匹配的代码行（正则搜索除外）
+     * @param highlightLines  每个文件最多的行数
+     * @return
+     */
+    public CodeQuery setHighlightLines(int highlightLines) {
+        this.highlightLines = highlightLines;
+        return this;
+    }
+
+    /**
+     * 按配置的时间预算创建正则匹配的预算，用于在搜索结果中标识匹配的行
+     * @return
+     */
+    public static CodeRegexQuery.Budget newRegexBudget() {
+        return new CodeRegexQuery.Budget(REGEX_TIME_BUDGET_MS, REGEX_MAX_CANDIDATES);
+    }
+
     /**
      * 索引类型
      *
@@ -50,9 +103,49 @@ public class CodeQuery extends QueryBase {
      */
     @Override
     protected Query buildUserQuery() {
+        if(regex) {
+            regexQuery = CodeRegexQuery.create(searchKey, REGEX_TIME_BUDGET_MS, REGEX_MAX_CANDIDATES);
+            return regexQuery;
+        }
         return codeQuery(searchKey);
     }
 
+    /**
+     * 正则搜索超出时间预算或者候选文档数上限时结果不完整
+     * @return
+     */
+    @Override
+    protected boolean isTruncated() {
+        return regexQuery != null && regexQuery.isTruncated();
+    }
+
+    @Override
+    protected String cacheKey() {
+        return super.cacheKey() + "|" + regex + "|" + highlightLines;
+    }
+
+    /**
+     * 根据源码字段中词条的偏移位置标识匹配的代码行，旧的索引段没有偏移位置时逐行扫描源码
+     * @param searcher
+     * @param query
+     * @param result
+     * @throws IOException
+     */
+    @Override
+    protected void readExtras(IndexSearcher searcher, Query query, QueryResult result) throws IOException {
+        if(regex || highlightLines <= 0)
+            return;
+        Set<String> terms = new LinkedHashSet<>(AnalyzerFactory.getCodeAnalyzer().tokens(searchKey));
+        List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+        for(Searchable obj : result.getObjects()) {
+            SourceFile file = (SourceFile)obj;
+            LeafReaderContext leaf = leaves.get(ReaderUtil.subIndex(file.get_doc_id(), leaves));
+            List<CodeLine> lines = SearchHelper.offset_lines(leaf.reader(), file.get_doc_id() - leaf.docBase,
+                    file.getContents(), file.getLineStarts(), terms, highlightLines);
+            file.setResult((lines != null) ? lines : SearchHelper.hl_lines(file.getContents(), searchKey, highlightLines));
+        }
+    }
+
     public static Query codeQuery(String q) {
         BooleanQuery.Builder builder = new BooleanQuery.Builder();
 
@@ -60,6 +153,10 @@ public class CodeQuery extends QueryBase {
 
         Query fileNameQuery = createPhraseQuery(Constants.FIELD_FILE_NAME, tokens, 1);//new PhraseQuery(1, Constants.FIELD_FILE_NAME, tokens);
         Query sourceQuery = createPhraseQuery(Constants.FIELD_SOURCE, tokens, 5);//new PhraseQuery(5, Constants.FIELD_SOURCE, tokens);
+        //源码词汇量很大，前缀通配符展开代价高，有三元组索引时改用子串查询，重建之前的旧索引段没有三元组，仍然使用原来的查询
+        Query substringQuery = AnalyzerFactory.isCodeNGramEnabled() ? createSubstringQuery(tokens) : null;
+        if(substringQuery != null)
+            sourceQuery = new FieldFallbackQuery(Constants.FIELD_SOURCE_NGRAM, substringQuery, sourceQuery);
 
         //make up query
         builder.add(new BoostQuery(fileNameQuery, 10.0f), BooleanClause.Occur.SHOULD);
@@ -68,6 +165,31 @@ public class CodeQuery extends QueryBase {
         return builder.setMinimumNumberShouldMatch(1).build();
     }
 
+    /**
+     * 使用三元组索引筛选候选文档，再读取源码验证，各个词的精确匹配参与相关度打分
+     * @param phraseWords
+     * @return 关键字太短无法使用三元组时返回 null
+     */
+    private static Query createSubstringQuery(String[] phraseWords) {
+        Set<String> grams = new LinkedHashSet<>();
+        for(String word : phraseWords)
+            grams.addAll(AnalyzerFactory.getTrigramAnalyzer().trigrams(word));
+        if(grams.isEmpty())
+            return null;
+
+        //候选集只需要是结果的超集，三元组过多时取一部分即可
+        BooleanQuery.Builder gramBuilder = new BooleanQuery.Builder();
+        grams.stream().limit(MAX_TRIGRAMS).forEach(gram ->
+                gramBuilder.add(new TermQuery(new Term(Constants.FIELD_SOURCE_NGRAM, gram)), BooleanClause.Occur.FILTER)
+        );
+
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        builder.add(new CodeSubstringQuery(gramBuilder.build(), phraseWords), BooleanClause.Occur.MUST);
+        for(String word : new LinkedHashSet<>(Arrays.asList(phraseWords)))
+            builder.add(new TermQuery(new Term(Constants.FIELD_SOURCE, word)), BooleanClause.Occur.SHOULD);
+        return builder.build();
+    }
+
     /**
      * Combine PhraseQuery & WildcardQuery
      * @param field
@@ -0,0 +1,210 @@
+/**
+ * Copyright (c) 2021, OSChina (oschina.net@gmail.com).
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitee.kooder.query;
+
+import com.gitee.kooder.core.AnalyzerFactory;
+import com.gitee.kooder.core.Constants;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * 源码正则表达式查询：从正则表达式中提取必须出现的三元组筛选候选文档，再用正则表达式验证源码
+ * 每次查询有时间预算和候选文档数上限，超出后不再验证剩余的候选文档，结果标记为不完整
+ */
+public class CodeRegexQuery extends SourceVerifyQuery {
+
+    private final Pattern pattern;
+    private final Budget budget;
+
+    private CodeRegexQuery(Query approximation, Pattern pattern, Budget budget) {
+        super(approximation);
+        this.pattern = pattern;
+        this.budget = budget;
+    }
+
+    /**
+     * 编译正则表达式并生成查询
+     * @param regex  正则表达式
+     * @param timeBudgetMs  验证候选文档的时间预算
+     * @param maxCandidates  最多验证的候选文档数
+     * @return
+     * @exception IllegalArgumentException 正则表达式不合法（PatternSyntaxException）或者无法使用索引（IllegalQueryException）
+     */
+    public static CodeRegexQuery create(String regex, long timeBudgetMs, int maxCandidates) {
+        if(!AnalyzerFactory.isCodeNGramEnabled())
+            throw new IllegalQueryException("Regex search requires trigram code index (indexer.code_ngram)");
+        Pattern pattern = compile(regex);
+        Query approximation = RegexTrigrams.extract(regex);
+        if(approximation == null)
+            throw new IllegalQueryException("Regex must contain a literal of at least 3 characters: " + regex);
+        //重建之前的旧索引段没有三元组，逐个验证全部文档，受时间预算和候选文档数上限限制
+        approximation = new FieldFallbackQuery(Constants.FIELD_SOURCE_NGRAM, approximation, new MatchAllDocsQuery());
+        return new CodeRegexQuery(approximation, pattern, new Budget(timeBudgetMs, maxCandidates));
+    }
+
+    /**
+     * 按多行模式编译正则表达式，^ 和 $ 匹配每一行的开头和结尾
+     * @param regex
+     * @return
+     * @exception java.util.regex.PatternSyntaxException
+     */
+    public static Pattern compile(String regex) {
+        return Pattern.compile(regex, Pattern.MULTILINE);
+    }
+
+    /**
+     * 是否因为超出时间预算或者候选文档数上限而没有验证全部候选文档
+     * @return
+     */
+    public boolean isTruncated() {
+        return budget.truncated;
+    }
+
+    public Pattern getPattern() {
+        return pattern;
+    }
+
+    /**
+     * 验证结果受时间预算影响，不能缓存
+     * @return
+     */
+    @Override
+    protected boolean isCacheable() {
+        return false;
+    }
+
+    @Override
+    protected boolean verify(String source) {
+        if(!budget.acquire())
+            return false;
+        try {
+            return pattern.matcher(new DeadlineCharSequence(source, budget)).find();
+        } catch (BudgetExceededException e) {
+            budget.truncated = true;
+            return false;
+        }
+    }
+
+    @Override
+    protected SourceVerifyQuery withApproximation(Query approximation) {
+        return new CodeRegexQuery(approximation, pattern, budget);
+    }
+
+    @Override
+    public String toString(String field) {
+        return Constants.FIELD_SOURCE + ":/" + pattern.pattern() + "/";
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return sameClassAs(other) &&
+                approximation.equals(((CodeRegexQuery) other).approximation) &&
+                pattern.pattern().equals(((CodeRegexQuery) other).pattern.pattern()) &&
+                budget == ((CodeRegexQuery) other).budget;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(classHash(), approximation, pattern.pattern());
+    }
+
+    /**
+     * 一次查询的时间预算和候选文档数上限，分段并发搜索时各线程共享
+     */
+    public static class Budget {
+
+        private final long deadline;
+        private final int maxCandidates;
+        private final AtomicInteger candidates = new AtomicInteger(0);
+        private volatile boolean truncated = false;
+
+        public Budget(long timeBudgetMs, int maxCandidates) {
+            this.deadline = System.currentTimeMillis() + timeBudgetMs;
+            this.maxCandidates = maxCandidates;
+        }
+
+        /**
+         * 申请验证一个候选文档
+         * @return 超出预算时返回 false
+         */
+        boolean acquire() {
+            if(truncated)
+                return false;
+            if(candidates.incrementAndGet() > maxCandidates || isExpired()) {
+                truncated = true;
+                return false;
+            }
+            return true;
+        }
+
+        public boolean isExpired() {
+            return System.currentTimeMillis() > deadline;
+        }
+    }
+
+    /**
+     * 在正则匹配过程中检查时间预算，避免回溯过多的正则表达式长时间占用搜索线程
+     */
+    public static class DeadlineCharSequence implements CharSequence {
+
+        private final CharSequence text;
+        private final Budget budget;
+        private int reads = 0;
+
+        public DeadlineCharSequence(CharSequence text, Budget budget) {
+            this.text = text;
+            this.budget = budget;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if((++reads & 0xFFF) == 0 && budget.isExpired())
+                throw new BudgetExceededException();
+            return text.charAt(index);
+        }
+
+        @Override
+        public int length() {
+            return text.length();
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new DeadlineCharSequence(text.subSequence(start, end), budget);
+        }
+
+        @Override
+        public String toString() {
+            return text.toString();
+        }
+    }
+
+    /**
+     * 超出时间预算，不需要堆栈信息
+     */
+    public static class BudgetExceededException extends RuntimeException {
+
+        private final static long serialVersionUID = 1L;
+
+        public BudgetExceededException() {
+            super("Regex time budget exceeded", null, false, false);
+        }
+    }
+}
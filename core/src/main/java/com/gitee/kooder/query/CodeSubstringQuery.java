@@ -0,0 +1,94 @@
+/**
+ * Copyright (c) 2021, OSChina (oschina.net@gmail.com).
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitee.kooder.query;
+
+import com.gitee.kooder.core.Constants;
+import org.apache.lucene.search.Query;
+
+import java.util.Arrays;
+
+/**
+ * 源码子串查询：先用三元组索引求交集得到候选文档，再读取源码验证各个词按顺序、在相近的位置出现
+ */
+public class CodeSubstringQuery extends SourceVerifyQuery {
+
+    public final static int MAX_GAP = 40;   //相邻两个词之间最多间隔的字符数，近似原来 slop=5 的短语匹配
+
+    private final String[] tokens;
+
+    /**
+     * @param approximation  三元组查询，匹配结果必须包含所有满足条件的文档
+     * @param tokens  需要按顺序出现的词
+     */
+    public CodeSubstringQuery(Query approximation, String[] tokens) {
+        super(approximation);
+        this.tokens = tokens.clone();
+    }
+
+    /**
+     * 判断源码中是否按顺序出现所有的词，且相邻两个词的间隔不超过 MAX_GAP
+     * @param source
+     * @param tokens
+     * @return
+     */
+    public static boolean matches(String source, String[] tokens) {
+        if(tokens.length == 0)
+            return false;
+        for(int start = source.indexOf(tokens[0]); start >= 0; start = source.indexOf(tokens[0], start + 1)) {
+            if(matchFrom(source, tokens, 1, start + tokens[0].length()))
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean matchFrom(String source, String[] tokens, int index, int end) {
+        if(index >= tokens.length)
+            return true;
+        String token = tokens[index];
+        for(int next = source.indexOf(token, end); next >= 0 && next - end <= MAX_GAP; next = source.indexOf(token, next + 1)) {
+            if(matchFrom(source, tokens, index + 1, next + token.length()))
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    protected boolean verify(String source) {
+        return matches(source, tokens);
+    }
+
+    @Override
+    protected SourceVerifyQuery withApproximation(Query approximation) {
+        return new CodeSubstringQuery(approximation, tokens);
+    }
+
+    @Override
+    public String toString(String field) {
+        return Constants.FIELD_SOURCE + ":substring" + Arrays.toString(tokens);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return sameClassAs(other) &&
+                approximation.equals(((CodeSubstringQuery) other).approximation) &&
+                Arrays.equals(tokens, ((CodeSubstringQuery) other).tokens);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * classHash() + approximation.hashCode()) + Arrays.hashCode(tokens);
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright (c) 2021, OSChina (oschina.net@gmail.com).
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitee.kooder.query;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.*;
+
+import java.io.IOException;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * 按索引段选择查询：索引段中有某个字段时使用 query，没有时使用 fallback
+ * 用于依赖新字段的查询（例如源码的三元组），旧的索引段在重建之前仍然可以使用原来的查询
+ */
+public class FieldFallbackQuery extends Query {
+
+    private final String field;
+    private final Query query;
+    private final Query fallback;
+
+    /**
+     * @param field  query 依赖的字段
+     * @param query  索引段中有该字段时使用的查询
+     * @param fallback  索引段中没有该字段时使用的查询
+     */
+    public FieldFallbackQuery(String field, Query query, Query fallback) {
+        this.field = Objects.requireNonNull(field);
+        this.query = Objects.requireNonNull(query);
+        this.fallback = Objects.requireNonNull(fallback);
+    }
+
+    private boolean hasField(LeafReaderContext context) {
+        return context.reader().getFieldInfos().fieldInfo(field) != null;
+    }
+
+    /**
+     * 所有索引段都有（或者都没有）该字段时直接改写为对应的查询
+     * @param reader
+     * @return
+     * @throws IOException
+     */
+    @Override
+    public Query rewrite(IndexReader reader) throws IOException {
+        int withField = 0;
+        for(LeafReaderContext context : reader.leaves())
+            if(hasField(context))
+                withField ++;
+        if(withField == reader.leaves().size())
+            return query;
+        if(withField == 0)
+            return fallback;
+        Query rewrittenQuery = query.rewrite(reader);
+        Query rewrittenFallback = fallback.rewrite(reader);
+        if(rewrittenQuery != query || rewrittenFallback != fallback)
+            return new FieldFallbackQuery(field, rewrittenQuery, rewrittenFallback);
+        return super.rewrite(reader);
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher, ScoreMode scoreMode, float boost) throws IOException {
+        Weight queryWeight = searcher.createWeight(query, scoreMode, boost);
+        Weight fallbackWeight = searcher.createWeight(fallback, scoreMode, boost);
+        return new Weight(this) {
+
+            private Weight select(LeafReaderContext context) {
+                return hasField(context) ? queryWeight : fallbackWeight;
+            }
+
+            @Override
+            @SuppressWarnings("deprecation")
+            public void extractTerms(Set<Term> terms) {
+                queryWeight.extractTerms(terms);
+                fallbackWeight.extractTerms(terms);
+            }
+
+            @Override
+            public Matches matches(LeafReaderContext context, int doc) throws IOException {
+                return select(context).matches(context, doc);
+            }
+
+            @Override
+            public Explanation explain(LeafReaderContext context, int doc) throws IOException {
+                return select(context).explain(context, doc);
+            }
+
+            @Override
+            public Scorer scorer(LeafReaderContext context) throws IOException {
+                return select(context).scorer(context);
+            }
+
+            @Override
+            public BulkScorer bulkScorer(LeafReaderContext context) throws IOException {
+                return select(context).bulkScorer(context);
+            }
+
+            @Override
+            public boolean isCacheable(LeafReaderContext context) {
+                return select(context).isCacheable(context);
+            }
+        };
+    }
+
+    @Override
+    public void visit(QueryVisitor visitor) {
+        QueryVisitor v = visitor.getSubVisitor(BooleanClause.Occur.SHOULD, this);
+        query.visit(v);
+        fallback.visit(v);
+    }
+
+    @Override
+    public String toString(String field) {
+        return "FieldFallbackQuery(" + this.field + ": " + query.toString(field) + " | " + fallback.toString(field) + ")";
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return sameClassAs(other) &&
+                field.equals(((FieldFallbackQuery) other).field) &&
+                query.equals(((FieldFallbackQuery) other).query) &&
+                fallback.equals(((FieldFallbackQuery) other).fallback);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(classHash(), field, query, fallback);
+    }
+}
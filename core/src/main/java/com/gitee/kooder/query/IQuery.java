@@ -61,6 +61,13 @@ public interface IQuery {
      */
     IQuery setPage(int page);
 
+    /**
+     * 分页游标，由上一页结果的 cursor 返回，设置后忽略页码直接读取游标之后的一页
+     * @param cursor
+     * @return
+     */
+    IQuery setCursor(String cursor);
+
     /**
      * 页大小
      * @param pageSize
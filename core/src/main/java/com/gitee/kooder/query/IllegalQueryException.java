@@ -0,0 +1,34 @@
+/**
+ * Copyright (c) 2021, OSChina (oschina.net@gmail.com).
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitee.kooder.query;
+
+/**
+ * 搜索请求的参数不合法，例如空的关键字、无法使用的正则表达式或者错误的分页游标
+ * 网关对这类错误返回 406，其他异常都当作服务端错误处理
+ */
+public class IllegalQueryException extends IllegalArgumentException {
+
+    private final static long serialVersionUID = 1L;
+
+    public IllegalQueryException(String message) {
+        super(message);
+    }
+
+    public IllegalQueryException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+}
@@ -59,18 +59,20 @@ public class IssueQuery extends QueryBase {
             try {
                 return parser.parse(searchKey);
             } catch (ParseException e) {
-                throw new QueryException("Failed to parse \""+searchKey+"\"", e);
+                throw new IllegalQueryException("Failed to parse \""+searchKey+"\"", e);
             }
         }
         String q = QueryParser.escape(searchKey);
+        //关键字只分词一次，各个字段共用分词结果
+        QueryPlan plan = QueryPlan.of(searchKey);
         BooleanQuery.Builder builder = new BooleanQuery.Builder();
         //filter
         //search
         BooleanQuery.Builder qbuilder = new BooleanQuery.Builder();
         qbuilder.add(makeBoostQuery(Constants.FIELD_IDENT, q, 100.0f), BooleanClause.Occur.SHOULD);
-        qbuilder.add(makeBoostQuery(Constants.FIELD_TITLE, q, 10.0f), BooleanClause.Occur.SHOULD);
-        qbuilder.add(makeBoostQuery(Constants.FIELD_TAGS, q, 1.0f), BooleanClause.Occur.SHOULD);
-        qbuilder.add(makeBoostQuery(Constants.FIELD_DESC, q, 1.0f), BooleanClause.Occur.SHOULD);
+        qbuilder.add(makeBoostQuery(Constants.FIELD_TITLE, plan, 10.0f), BooleanClause.Occur.SHOULD);
+        qbuilder.add(makeBoostQuery(Constants.FIELD_TAGS, plan, 1.0f), BooleanClause.Occur.SHOULD);
+        qbuilder.add(makeBoostQuery(Constants.FIELD_DESC, plan, 1.0f), BooleanClause.Occur.SHOULD);
         qbuilder.setMinimumNumberShouldMatch(1);
 
         builder.add(qbuilder.build(), BooleanClause.Occur.MUST);
@@ -17,6 +17,8 @@ package com.gitee.kooder.query;
 
 import com.gitee.kooder.core.AnalyzerFactory;
 import com.gitee.kooder.core.Constants;
+import com.gitee.kooder.core.SearchHelper;
+import com.gitee.kooder.models.DocValuesPatch;
 import com.gitee.kooder.models.QueryResult;
 import com.gitee.kooder.models.Searchable;
 import com.gitee.kooder.storage.StorageFactory;
@@ -24,12 +26,17 @@ import org.apache.commons.lang3.StringUtils;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.document.StoredField;
 import org.apache.lucene.facet.*;
 import org.apache.lucene.facet.taxonomy.FastTaxonomyFacetCounts;
+import org.apache.lucene.facet.taxonomy.SearcherTaxonomyManager;
 import org.apache.lucene.facet.taxonomy.TaxonomyReader;
+import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexNotFoundException;
 import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.queries.function.FunctionScoreQuery;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.ReaderUtil;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.*;
@@ -58,23 +65,31 @@ public abstract class QueryBase implements IQuery {
     protected String sort;                                  // Sort field name
     protected int page = 1;                                 // Search result page index
     protected int pageSize = 20;                            // Search result page size
+    protected String cursor;                                // Search after this cursor
     protected Map<String, String[]> facets = new HashMap(); // Search with facets
     protected List<Query> filters = new ArrayList();      // Search filters
+    protected List<String> highlightFields = new ArrayList<>(); // Fields to highlight in search results
 
     /**
      * Get max object indexed .
      * @return
      */
     public Searchable getLastestObject() {
-        try (IndexReader reader = StorageFactory.getIndexReader(this.type())) {
-            IndexSearcher searcher = new IndexSearcher(reader);
-            Query thisQuery = new MatchAllDocsQuery();
-            TopFieldDocs docs = searcher.search(thisQuery, 1, this.getLastestObjectSort());
-            if (docs.totalHits.value > 0) {
-                QueryResult result = new QueryResult(this.type());
-                Document doc = searcher.doc(docs.scoreDocs[0].doc);
-                result.addDocument(doc, docs.scoreDocs[0]);
-                return result.getObjects().get(0);
+        try {
+            SearcherTaxonomyManager manager = StorageFactory.getSearcherManager(this.type());
+            SearcherTaxonomyManager.SearcherAndTaxonomy st = manager.acquire();
+            try {
+                IndexSearcher searcher = st.searcher;
+                Query thisQuery = new MatchAllDocsQuery();
+                TopFieldDocs docs = searcher.search(thisQuery, 1, this.getLastestObjectSort());
+                if (docs.totalHits.value > 0) {
+                    QueryResult result = new QueryResult(this.type());
+                    Document doc = readDocument(searcher, docs.scoreDocs[0].doc);
+                    result.addDocument(doc, docs.scoreDocs[0]);
+                    return result.getObjects().get(0);
+                }
+            } finally {
+                manager.release(st);
             }
         }catch(IndexNotFoundException e) {
         }catch(Exception e) {
@@ -102,8 +117,14 @@ public abstract class QueryBase implements IQuery {
      */
     @Override
     public long totalCount() {
-        try (IndexReader reader = StorageFactory.getIndexReader(this.type())) {
-            return reader.numDocs();
+        try {
+            SearcherTaxonomyManager manager = StorageFactory.getSearcherManager(this.type());
+            SearcherTaxonomyManager.SearcherAndTaxonomy st = manager.acquire();
+            try {
+                return st.searcher.getIndexReader().numDocs();
+            } finally {
+                manager.release(st);
+            }
         }catch(IndexNotFoundException e) {
         }catch(Exception e){
             log.error("Failed to get total object count from index[" + type() + "]", e);
@@ -119,7 +140,49 @@ public abstract class QueryBase implements IQuery {
     public final QueryResult execute() throws IOException {
 
         if(StringUtils.isBlank(searchKey))
-            throw new IllegalArgumentException("SearchKey must not be empty");
+            throw new IllegalQueryException("SearchKey must not be empty");
+
+        long ct = System.currentTimeMillis();
+
+        SearcherTaxonomyManager manager;
+        try {
+            manager = StorageFactory.getSearcherManager(this.type());
+        } catch(IndexNotFoundException e) {
+            return new QueryResult(this.type());
+        }
+
+        SearcherTaxonomyManager.SearcherAndTaxonomy st = manager.acquire();
+        try {
+            //相同的查询在索引未变化时直接从缓存读取结果
+            QueryResultCache cache = QueryResultCache.INSTANCE;
+            IndexReader reader = st.searcher.getIndexReader();
+            boolean cacheable = cache.isEnabled() && reader instanceof DirectoryReader;
+            String cacheKey = cacheable ? this.cacheKey() : null;
+            long version = cacheable ? ((DirectoryReader)reader).getVersion() : 0;
+            if(cacheable) {
+                QueryResult result = cache.get(cacheKey, version);
+                if (result != null) {
+                    result.setTimeUsed(System.currentTimeMillis() - ct);
+                    return result;
+                }
+            }
+            QueryResult result = search(st, ct);
+            if(cacheable && !result.isTruncated())
+                cache.put(cacheKey, version, result);
+            return result;
+        } finally {
+            manager.release(st);
+        }
+    }
+
+    /**
+     * 使用当前的索引快照执行搜索
+     * @param st
+     * @param ct  搜索开始时间
+     * @return
+     * @throws IOException
+     */
+    private QueryResult search(SearcherTaxonomyManager.SearcherAndTaxonomy st, long ct) throws IOException {
 
         Query query = buildQuery();
         Sort sort = buildSort();
@@ -129,71 +192,180 @@ public abstract class QueryBase implements IQuery {
         boolean needFacetQuery = (facets != null) && (facets.size() > 0);
         Query thisQuery = query;
 
-        if ( needFacetQuery ) { // 避免二次执行 FunctionScoreQuery ，比较耗时
-            if(query instanceof FunctionScoreQuery)
-                thisQuery = ((FunctionScoreQuery)query).getWrappedQuery();
+        //共享的 searcher 不能修改 similarity，需要时使用同一个 reader 创建新的 searcher
+        IndexSearcher searcher = st.searcher;
+        if(getSimilarity() != null) {
+            searcher = StorageFactory.newSearcher(st.searcher.getIndexReader());
+            searcher.setSimilarity(getSimilarity());
         }
 
-        long ct = System.currentTimeMillis();
-
-        try (IndexReader reader = StorageFactory.getIndexReader(this.type())) {
-            IndexSearcher searcher = new IndexSearcher(reader);
-
-            if(getSimilarity() != null)
-                searcher.setSimilarity(getSimilarity());
-
-            TaxonomyReader taxoReader = StorageFactory.getTaxonomyReader(this.type());
-            // Aggregates the facet values
-            FacetsCollector fc = new FacetsCollector(false);
-            //如果 n 传 0 ，则 search 方法 100% 报 ClassCastException 异常，这是 Lucene 的 bug
-            TopDocs docs = FacetsCollector.search(searcher, thisQuery, page * pageSize, sort,true, fc); //fetch all facets
-
-            if( needFacetQuery ) {
-                BooleanQuery.Builder builder = new BooleanQuery.Builder();
-                builder.add(query, BooleanClause.Occur.MUST);
-                DrillDownQuery ddq = new DrillDownQuery(facetsConfig);
-                facets.forEach((k, values) ->
-                        Arrays.stream(values).forEach(v -> ddq.add(k, v))
-                );
-                builder.add(ddq, BooleanClause.Occur.MUST);
-                thisQuery = builder.build();
-                //TopDocs docs = FacetsCollector.search(searcher, thisQuery, page * pageSize, sort,true, new FacetsCollector(false));
-                docs = searcher.search(thisQuery, page * pageSize, sort,true);
+        //有游标时只需要收集游标之后的一页结果
+        ScoreDoc after = (cursor != null) ? SearchCursor.decode(cursor, sort) : null;
+        int numHits = (after != null) ? pageSize : page * pageSize;
+        int firstHit = (after != null) ? 0 : (page - 1) * pageSize;
+
+        TaxonomyReader taxoReader = st.taxonomyReader;
+        List<String> facetFields = this.listFacetFields();
+        Facets facetCounts = null;
+        TopDocs docs;
+
+        if( needFacetQuery ) {
+            //DrillSideways 一次遍历同时得到钻取后的结果和各维度的侧向统计，避免对代价很高的查询执行两次
+            DrillDownQuery ddq = new DrillDownQuery(facetsConfig, query);
+            facets.forEach((k, values) ->
+                    Arrays.stream(values).forEach(v -> ddq.add(k, v))
+            );
+            DrillSideways ds = new DrillSideways(searcher, facetsConfig, taxoReader);
+            DrillSideways.DrillSidewaysResult dsr = (sort != null) ?
+                    ds.search(ddq, null, (FieldDoc)after, numHits, sort, true) : ds.search(after, ddq, numHits);
+            docs = dsr.hits;
+            facetCounts = dsr.facets;
+            thisQuery = ddq;
+        }
+        else {
+            //使用 CollectorManager 搜索，searcher 配置了线程池时按索引段分片并发执行
+            CollectorManager<?, ? extends TopDocs> topDocsManager = (sort != null) ?
+                    TopFieldCollector.createSharedManager(sort, numHits, (FieldDoc)after, Integer.MAX_VALUE) :
+                    TopScoreDocCollector.createSharedManager(numHits, toFieldDoc(after), Integer.MAX_VALUE);
+            if(facetFields.size() > 0) {
+                // Aggregates the facet values
+                Object[] collected = searcher.search(thisQuery, new MultiCollectorManager(topDocsManager, new FacetsCollectorManager()));
+                docs = (TopDocs) collected[0];
+                facetCounts = new FastTaxonomyFacetCounts(taxoReader, facetsConfig, (FacetsCollector) collected[1]);
             }
+            else
+                docs = searcher.search(thisQuery, topDocsManager);
+            if(sort != null)
+                TopFieldCollector.populateScores(docs.scoreDocs, searcher, thisQuery);
+        }
 
-            int totalPages = (int) Math.ceil(docs.totalHits.value / (double) pageSize);
+        int totalPages = (int) Math.ceil(docs.totalHits.value / (double) pageSize);
+
+        //read objects
+        result.setTotalHits((int)docs.totalHits.value);
+        result.setTotalPages(totalPages);
+        //使用游标时忽略了页码，结果中不返回页码
+        result.setPageIndex((after != null) ? null : page);
+        result.setPageSize(pageSize);
+        result.setTimeUsed(System.currentTimeMillis() - ct);
+        result.setQuery(thisQuery.toString());
+        result.setTruncated(isTruncated());
+
+        for(int i = firstHit; i < numHits && i < docs.scoreDocs.length ; i++) {
+            Document doc = readDocument(searcher, docs.scoreDocs[i].doc);
+            result.addDocument(doc, docs.scoreDocs[i]);
+        }
+        readExtras(searcher, query, result);
+        //当前页已满，返回下一页的游标
+        if(docs.scoreDocs.length == numHits && numHits > firstHit)
+            result.setCursor(SearchCursor.encode(docs.scoreDocs[numHits - 1]));
+
+        //read facets
+        if(facetCounts != null) {
+            for (String facetField : facetFields) {
+                FacetResult facetResult = facetCounts.getTopChildren(Integer.MAX_VALUE, facetField);
+                if (facetResult != null) {
+                    for (LabelAndValue lav : facetResult.labelValues) {
+                        result.addFacet(facetField, lav);
+                    }
+                }
+            }
+        }
 
-            //read objects
-            result.setTotalHits((int)docs.totalHits.value);
-            result.setTotalPages(totalPages);
-            result.setPageIndex(page);
-            result.setPageSize(pageSize);
-            result.setTimeUsed(System.currentTimeMillis() - ct);
-            result.setQuery(thisQuery.toString());
+        return result;
+    }
 
-            for(int i = (page-1) * pageSize; i < page * pageSize && i < docs.totalHits.value ; i++) {
-                Document doc = searcher.doc(docs.scoreDocs[i].doc);
-                result.addDocument(doc, docs.scoreDocs[i]);
+    /**
+     * 读取文档的存储字段，可部分更新的数值字段以 doc values 中的值为准（ACTION_PATCH 不会修改存储字段）
+     * @param searcher
+     * @param docId
+     * @return
+     * @throws IOException
+     */
+    protected Document readDocument(IndexSearcher searcher, int docId) throws IOException {
+        Document doc = searcher.doc(docId);
+        Set<String> fields = DocValuesPatch.getPatchableFields(type());
+        if(fields.isEmpty())
+            return doc;
+        List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+        LeafReaderContext leaf = leaves.get(ReaderUtil.subIndex(docId, leaves));
+        for(String field : fields) {
+            NumericDocValues values = leaf.reader().getNumericDocValues(field);
+            if(values != null && values.advanceExact(docId - leaf.docBase)) {
+                doc.removeFields(field);
+                doc.add(new StoredField(field, values.longValue()));
             }
+        }
+        return doc;
+    }
 
-            //read facets
-            List<String> facetFields = this.listFacetFields();
-            if(facetFields.size() > 0) {
-                Facets facets = new FastTaxonomyFacetCounts(taxoReader, facetsConfig, fc);
-
-                for (String facetField : facetFields) {
-                    FacetResult facetResult = facets.getTopChildren(Integer.MAX_VALUE, facetField);
-                    if (facetResult != null) {
-                        for (LabelAndValue lav : facetResult.labelValues) {
-                            result.addFacet(facetField, lav);
-                        }
-                    }
-                }
+    /**
+     * 读取当前页的对象之后，在同一个索引快照上补充需要读取索引的内容（例如高亮）
+     * 默认一次性高亮当前页所有对象的 highlightFields 字段
+     * @param searcher
+     * @param query
+     * @param result
+     * @throws IOException
+     */
+    protected void readExtras(IndexSearcher searcher, Query query, QueryResult result) throws IOException {
+        List<Searchable> objs = result.getObjects();
+        if(highlightFields.isEmpty() || objs.isEmpty())
+            return;
+        String[] fields = highlightFields.toArray(new String[0]);
+        int[] docIds = objs.stream().mapToInt(Searchable::get_doc_id).toArray();
+        Map<String, String[]> highlights = SearchHelper.highlight(searcher, query, fields, docIds);
+        for(int i = 0; i < objs.size(); i++) {
+            Map<String, String> objHighlights = new HashMap<>();
+            for(String field : fields) {
+                String[] values = highlights.get(field);
+                if(values != null && values[i] != null)
+                    objHighlights.put(field, values[i]);
             }
-
-        } catch(IndexNotFoundException e) {
+            objs.get(i).setHighlights(objHighlights);
         }
-        return result;
+    }
+
+    /**
+     * 按相关度排序时游标只用到 doc 和 score
+     * @param after
+     * @return
+     */
+    private static FieldDoc toFieldDoc(ScoreDoc after) {
+        if(after == null || after instanceof FieldDoc)
+            return (FieldDoc) after;
+        return new FieldDoc(after.doc, after.score);
+    }
+
+    /**
+     * 搜索是否因为超出限制而提前结束，结果可能不完整
+     * @return
+     */
+    protected boolean isTruncated() {
+        return false;
+    }
+
+    /**
+     * 规范化后的查询条件，作为搜索结果缓存的 key
+     * @return
+     */
+    protected String cacheKey() {
+        StringBuilder key = new StringBuilder(type());
+        key.append('|').append(searchKey.length()).append(':').append(searchKey);
+        key.append('|').append(parseSearchKey);
+        key.append('|').append(enterpriseId);
+        key.append('|').append(new TreeSet<>(repositories));
+        key.append('|');
+        new TreeMap<>(facets).forEach((name, values) -> {
+            String[] sortedValues = values.clone();
+            Arrays.sort(sortedValues);
+            key.append(name).append('=').append(Arrays.toString(sortedValues)).append(';');
+        });
+        key.append('|').append(new TreeSet<>(getFilters()));
+        key.append('|').append(sort);
+        key.append('|').append(page).append('|').append(pageSize);
+        key.append('|').append(cursor);
+        key.append('|').append(highlightFields);
+        return key.toString();
     }
 
     /**
@@ -284,6 +456,17 @@ public abstract class QueryBase implements IQuery {
         return this;
     }
 
+    /**
+     * 分页游标
+     * @param cursor
+     * @return
+     */
+    @Override
+    public IQuery setCursor(String cursor) {
+        this.cursor = StringUtils.isBlank(cursor) ? null : cursor;
+        return this;
+    }
+
     /**
      * 页大小
      * @param pageSize
@@ -295,6 +478,16 @@ public abstract class QueryBase implements IQuery {
         return this;
     }
 
+    /**
+     * 搜索时同时高亮当前页对象的这些字段，结果见 Searchable.getHighlights
+     * @param fields
+     * @return
+     */
+    public QueryBase setHighlightFields(String...fields) {
+        this.highlightFields = Arrays.asList(fields);
+        return this;
+    }
+
     public int getEnterpriseId() {
         return enterpriseId;
     }
@@ -355,7 +548,7 @@ public abstract class QueryBase implements IQuery {
         try {
             filters.add(new QueryParser(null, AnalyzerFactory.getSimpleAnalyzer()).parse(filterQueryString));
         } catch (ParseException e) {
-            throw new QueryException("Failed to add filter: " + filterQueryString, e);
+            throw new IllegalQueryException("Failed to add filter: " + filterQueryString, e);
         }
         return this;
     }
@@ -383,10 +576,23 @@ public abstract class QueryBase implements IQuery {
         try {
             return new BoostQuery(parser.parse(q), boost);
         } catch (ParseException e) {
-            throw new QueryException(String.format("Failed to build field query(%s,%s,%.2f)", field, q, boost), e);
+            throw new IllegalQueryException(String.format("Failed to build field query(%s,%s,%.2f)", field, q, boost), e);
         }
     }
 
+    /**
+     * Build a query for one document field with boost, the field query comes from the shared query plan
+     * @param field
+     * @param plan
+     * @param boost
+     * @return
+     */
+    protected BoostQuery makeBoostQuery(String field, QueryPlan plan, float boost) {
+        if(plan.hasOperators())
+            return makeBoostQuery(field, QueryParser.escape(searchKey), boost);
+        return new BoostQuery(plan.getFieldQuery(field), boost);
+    }
+
     /**
      * 自定义分词器
      * @param forIndex
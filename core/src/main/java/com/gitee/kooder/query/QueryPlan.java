@@ -0,0 +1,140 @@
+/**
+ * Copyright (c) 2021, OSChina (oschina.net@gmail.com).
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitee.kooder.query;
+
+import com.gitee.kooder.core.AnalyzerFactory;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 搜索关键字的查询计划：关键字只分词一次，各个字段的查询都由同一份分词结果生成
+ * 生成的查询与 QueryParser（默认 AND）解析转义后的关键字结果一致：整个关键字一起分词，分词后的词全部必须匹配
+ * 查询计划按关键字缓存（LRU），重复搜索同一个关键字时不再分词
+ */
+public class QueryPlan {
+
+    private final static int MAX_CACHED_PLANS = 1024;
+
+    //QueryParser 转义后仍然会作为运算符处理的词
+    private final static Set<String> OPERATORS = new HashSet<>(Arrays.asList("AND", "OR", "NOT"));
+
+    private final static Map<String, QueryPlan> plans = new LinkedHashMap<String, QueryPlan>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, QueryPlan> eldest) {
+            return size() > MAX_CACHED_PLANS;
+        }
+    };
+
+    private final String key;
+    private final List<String> terms;
+    private final boolean withOperators;
+    private final Map<String, Query> fieldQueries = new ConcurrentHashMap<>();
+
+    private QueryPlan(String key, List<String> terms, boolean withOperators) {
+        this.key = key;
+        this.terms = terms;
+        this.withOperators = withOperators;
+    }
+
+    /**
+     * 获取关键字的查询计划，使用搜索分词器
+     * @param key
+     * @return
+     */
+    public static QueryPlan of(String key) {
+        QueryPlan plan;
+        synchronized (plans) {
+            plan = plans.get(key);
+        }
+        if(plan == null) {
+            plan = build(key, AnalyzerFactory.getInstance(false));
+            synchronized (plans) {
+                plans.put(key, plan);
+            }
+        }
+        return plan;
+    }
+
+    private static QueryPlan build(String key, Analyzer analyzer) {
+        //QueryParser 把连续的词用空格连接后一起分词
+        String[] parts = Arrays.stream(key.split("[ \\t\\n\\r\\u3000]+")).filter(p -> !p.isEmpty()).toArray(String[]::new);
+        boolean withOperators = Arrays.stream(parts).anyMatch(OPERATORS::contains);
+        return new QueryPlan(key, analyze(analyzer, String.join(" ", parts)), withOperators);
+    }
+
+    private static List<String> analyze(Analyzer analyzer, String text) {
+        List<String> terms = new ArrayList<>();
+        try (TokenStream stream = analyzer.tokenStream(null, text)) {
+            CharTermAttribute termAtt = stream.addAttribute(CharTermAttribute.class);
+            stream.reset();
+            while(stream.incrementToken())
+                terms.add(termAtt.toString());
+            stream.end();
+        } catch (IOException e) {
+            throw new QueryException("Failed to analyze \"" + text + "\"", e);
+        }
+        return terms;
+    }
+
+    /**
+     * 关键字中包含 AND/OR/NOT 等运算符时，需要由 QueryParser 来解析
+     * @return
+     */
+    public boolean hasOperators() {
+        return withOperators;
+    }
+
+    /**
+     * 关键字的分词结果
+     * @return
+     */
+    public List<String> getTerms() {
+        return Collections.unmodifiableList(terms);
+    }
+
+    /**
+     * 生成某个字段的查询，同一字段的查询只生成一次
+     * @param field
+     * @return
+     */
+    public Query getFieldQuery(String field) {
+        return fieldQueries.computeIfAbsent(field, this::buildFieldQuery);
+    }
+
+    private Query buildFieldQuery(String field) {
+        if(terms.size() == 1)
+            return new TermQuery(new Term(field, terms.get(0)));
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        for(String term : terms)
+            builder.add(new TermQuery(new Term(field, term)), BooleanClause.Occur.MUST);
+        return builder.build();
+    }
+
+    @Override
+    public String toString() {
+        return "QueryPlan{key='" + key + "', terms=" + terms + '}';
+    }
+}
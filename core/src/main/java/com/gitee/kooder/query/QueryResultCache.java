@@ -0,0 +1,159 @@
+/**
+ * Copyright (c) 2021, OSChina (oschina.net@gmail.com).
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitee.kooder.query;
+
+import com.gitee.kooder.core.KooderConfig;
+import com.gitee.kooder.models.QueryResult;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 搜索结果缓存，以规范化后的查询条件为 key，缓存序列化后的 QueryResult
+ * 按占用字节数限制大小，LRU 淘汰；索引版本变化（写入端提交）后缓存自动失效
+ */
+public class QueryResultCache {
+
+    private final static Logger log = LoggerFactory.getLogger(QueryResultCache.class);
+
+    public final static QueryResultCache INSTANCE = new QueryResultCache(
+            NumberUtils.toLong(KooderConfig.getSearchProperties().getProperty("result_cache.max_mb"), 64) * 1024L * 1024L);
+
+    private long maxBytes;
+    private long usedBytes = 0;
+    private LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+
+    private AtomicLong hitCount = new AtomicLong(0);
+    private AtomicLong missCount = new AtomicLong(0);
+    private AtomicLong evictionCount = new AtomicLong(0);
+
+    public QueryResultCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * 缓存是否启用
+     * @return
+     */
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * 读取缓存的搜索结果，缓存时的索引版本与当前不一致则视为失效
+     * @param key
+     * @param version  当前索引版本
+     * @return
+     */
+    public QueryResult get(String key, long version) {
+        if(!isEnabled())
+            return null;
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            if(entry != null && entry.version != version) {
+                remove(key);
+                entry = null;
+            }
+        }
+        if(entry == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(entry.data))) {
+            hitCount.incrementAndGet();
+            return (QueryResult) in.readObject();
+        } catch (IOException | ClassNotFoundException e) {
+            log.warn("Failed to read cached result of " + key, e);
+            missCount.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * 缓存搜索结果
+     * @param key
+     * @param version  搜索时的索引版本
+     * @param result
+     */
+    public void put(String key, long version, QueryResult result) {
+        if(!isEnabled())
+            return;
+        byte[] data;
+        try (ByteArrayOutputStream bytes = new ByteArrayOutputStream(); ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(result);
+            out.flush();
+            data = bytes.toByteArray();
+        } catch (IOException e) {
+            log.warn("Failed to cache result of " + key, e);
+            return;
+        }
+        long size = data.length + key.length() * 2L;
+        if(size > maxBytes)
+            return;
+        synchronized (this) {
+            remove(key);
+            entries.put(key, new Entry(version, data, size));
+            usedBytes += size;
+            Iterator<Entry> it = entries.values().iterator();
+            while(usedBytes > maxBytes && it.hasNext()) {
+                usedBytes -= it.next().size;
+                it.remove();
+                evictionCount.incrementAndGet();
+            }
+        }
+    }
+
+    private void remove(String key) {
+        Entry old = entries.remove(key);
+        if(old != null)
+            usedBytes -= old.size;
+    }
+
+    /**
+     * 缓存统计信息
+     * @return
+     */
+    public synchronized Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("hit_count", hitCount.get());
+        stats.put("miss_count", missCount.get());
+        stats.put("eviction_count", evictionCount.get());
+        stats.put("cache_count", entries.size());
+        stats.put("used_bytes", usedBytes);
+        stats.put("max_bytes", maxBytes);
+        return stats;
+    }
+
+    private static class Entry {
+
+        final long version;
+        final byte[] data;
+        final long size;
+
+        Entry(long version, byte[] data, long size) {
+            this.version = version;
+            this.data = data;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,332 @@
+/**
+ * Copyright (c) 2021, OSChina (oschina.net@gmail.com).
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitee.kooder.query;
+
+import com.gitee.kooder.core.AnalyzerFactory;
+import com.gitee.kooder.core.Constants;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 从 Java 正则表达式中提取匹配结果必须包含的三元组，生成候选文档的查询条件
+ * 只分析连续的字面字符：分支取“或”，顺序取“与”，可选的部分以及字符类、通配符、零宽断言等都当作断开处理
+ * 结果是匹配文档的超集，最终是否匹配由正则表达式验证；无法提取时返回 null
+ */
+class RegexTrigrams {
+
+    private final static int MAX_TRIGRAMS = 64; //最多使用的三元组个数，超出的部分不参与筛选
+
+    private final String regex;
+    private int pos = 0;
+    private int gramCount = 0;
+    private boolean unsupported = false;
+
+    private RegexTrigrams(String regex) {
+        this.regex = regex;
+    }
+
+    /**
+     * 提取正则表达式的三元组查询条件（正则表达式必须已经通过编译检查）
+     * @param regex
+     * @return 无法从正则表达式中提取出三元组时返回 null
+     */
+    static Query extract(String regex) {
+        RegexTrigrams parser = new RegexTrigrams(regex);
+        Query query = parser.parseAlternation();
+        if(parser.unsupported || parser.pos < regex.length())
+            return null;
+        return query;
+    }
+
+    /**
+     * alternation := sequence ('|' sequence)*
+     */
+    private Query parseAlternation() {
+        List<Query> branches = new ArrayList<>();
+        branches.add(parseSequence());
+        while(pos < regex.length() && regex.charAt(pos) == '|') {
+            pos++;
+            branches.add(parseSequence());
+        }
+        if(branches.size() == 1)
+            return branches.get(0);
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        for(Query branch : branches) {
+            if(branch == null)  //任意一个分支没有限制，整个分支也就没有限制
+                return null;
+            builder.add(branch, BooleanClause.Occur.SHOULD);
+        }
+        return builder.setMinimumNumberShouldMatch(1).build();
+    }
+
+    /**
+     * sequence := (atom quantifier?)*
+     */
+    private Query parseSequence() {
+        List<Query> required = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        while(pos < regex.length() && !unsupported) {
+            char ch = regex.charAt(pos);
+            if(ch == '|' || ch == ')')
+                break;
+            Atom atom = parseAtom();
+            int quantifier = parseQuantifier();
+            if(atom.literal != null) {
+                if(quantifier == QUANTIFIER_OPTIONAL) {
+                    //量词只作用于最后一个字符
+                    String text = atom.literal;
+                    literal.append(text, 0, text.offsetByCodePoints(text.length(), -1));
+                    flush(literal, required);
+                }
+                else {
+                    literal.append(atom.literal);
+                    if(quantifier == QUANTIFIER_REPEAT)
+                        flush(literal, required);
+                }
+            }
+            else {
+                flush(literal, required);
+                if(atom.query != null && quantifier != QUANTIFIER_OPTIONAL)
+                    required.add(atom.query);
+            }
+        }
+        flush(literal, required);
+        if(required.isEmpty())
+            return null;
+        if(required.size() == 1)
+            return required.get(0);
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        required.forEach(q -> builder.add(q, BooleanClause.Occur.FILTER));
+        return builder.build();
+    }
+
+    private void flush(StringBuilder literal, List<Query> required) {
+        if(literal.length() > 0) {
+            for(String gram : AnalyzerFactory.getTrigramAnalyzer().trigrams(literal.toString())) {
+                if(gramCount++ >= MAX_TRIGRAMS)
+                    break;
+                required.add(new TermQuery(new Term(Constants.FIELD_SOURCE_NGRAM, gram)));
+            }
+            literal.setLength(0);
+        }
+    }
+
+    private Atom parseAtom() {
+        char ch = regex.charAt(pos);
+        switch(ch) {
+            case '(':
+                return parseGroup();
+            case '[':
+                skipCharClass();
+                return Atom.OTHER;
+            case '\\':
+                return parseEscape();
+            case '.':
+            case '^':
+            case '$':
+            case '*':
+            case '+':
+            case '?':
+            case '{':
+                pos++;
+                return Atom.OTHER;
+            default:
+                int cp = regex.codePointAt(pos);
+                pos += Character.charCount(cp);
+                return Atom.literal(new String(Character.toChars(cp)));
+        }
+    }
+
+    private Atom parseGroup() {
+        pos++; // (
+        boolean lookaround = false;
+        if(regex.startsWith("?", pos)) {
+            if(regex.startsWith("?:", pos) || regex.startsWith("?>", pos))
+                pos += 2;
+            else if(regex.startsWith("?=", pos) || regex.startsWith("?!", pos)) {
+                pos += 2;
+                lookaround = true;
+            }
+            else if(regex.startsWith("?<=", pos) || regex.startsWith("?<!", pos)) {
+                pos += 3;
+                lookaround = true;
+            }
+            else if(regex.startsWith("?<", pos)) {
+                skipPast('>'); //named group
+            }
+            else {
+                //inline flags: (?idmsux-idmsux) or (?idmsux-idmsux:X)
+                int end = pos + 1;
+                while(end < regex.length() && "idmsuxU-".indexOf(regex.charAt(end)) >= 0)
+                    end++;
+                if(regex.substring(pos + 1, end).indexOf('x') >= 0) {
+                    unsupported = true;  //注释模式下空白和 # 的含义不同，不做分析
+                    return Atom.OTHER;
+                }
+                pos = end + 1;
+                if(end < regex.length() && regex.charAt(end) == ')')
+                    return Atom.OTHER;
+            }
+        }
+        Query query = parseAlternation();
+        if(pos < regex.length() && regex.charAt(pos) == ')')
+            pos++;
+        else
+            unsupported = true;
+        return lookaround ? Atom.OTHER : Atom.group(query);
+    }
+
+    private void skipCharClass() {
+        pos++; // [
+        if(pos < regex.length() && regex.charAt(pos) == '^')
+            pos++;
+        if(pos < regex.length() && regex.charAt(pos) == ']')
+            pos++;
+        int depth = 1;
+        while(pos < regex.length() && depth > 0) {
+            char ch = regex.charAt(pos++);
+            if(ch == '\\')
+                pos++;
+            else if(ch == '[')
+                depth++;
+            else if(ch == ']')
+                depth--;
+        }
+    }
+
+    private Atom parseEscape() {
+        pos++; // \
+        if(pos >= regex.length()) {
+            unsupported = true;
+            return Atom.OTHER;
+        }
+        char ch = regex.charAt(pos++);
+        switch(ch) {
+            case 'Q':
+                int end = regex.indexOf("\\E", pos);
+                String quoted = regex.substring(pos, end < 0 ? regex.length() : end);
+                pos = (end < 0) ? regex.length() : end + 2;
+                return quoted.isEmpty() ? Atom.OTHER : Atom.literal(quoted);
+            case 'x':
+                skipBraces(2);
+                return Atom.OTHER;
+            case 'u':
+                pos += 4;
+                return Atom.OTHER;
+            case '0':
+                while(pos < regex.length() && regex.charAt(pos) >= '0' && regex.charAt(pos) <= '7')
+                    pos++;
+                return Atom.OTHER;
+            case 'c':
+                pos++;
+                return Atom.OTHER;
+            case 'p':
+            case 'P':
+            case 'N':
+                skipBraces(1);
+                return Atom.OTHER;
+            case 'k':
+                skipPast('>');
+                return Atom.OTHER;
+            default:
+                if(Character.isLetterOrDigit(ch)) {
+                    while(Character.isDigit(ch) && pos < regex.length() && Character.isDigit(regex.charAt(pos)))
+                        pos++; //back reference
+                    return Atom.OTHER;
+                }
+                return Atom.literal(String.valueOf(ch)); //转义的元字符
+        }
+    }
+
+    private void skipBraces(int length) {
+        if(pos < regex.length() && regex.charAt(pos) == '{')
+            skipPast('}');
+        else
+            pos += length;
+    }
+
+    private void skipPast(char ch) {
+        int end = regex.indexOf(ch, pos);
+        if(end < 0) {
+            unsupported = true;
+            pos = regex.length();
+        }
+        else
+            pos = end + 1;
+    }
+
+    private final static int QUANTIFIER_NONE = 0;
+    private final static int QUANTIFIER_OPTIONAL = 1;  //可以出现 0 次
+    private final static int QUANTIFIER_REPEAT = 2;    //至少出现 1 次
+
+    private int parseQuantifier() {
+        if(pos >= regex.length())
+            return QUANTIFIER_NONE;
+        int quantifier;
+        char ch = regex.charAt(pos);
+        if(ch == '*' || ch == '?') {
+            quantifier = QUANTIFIER_OPTIONAL;
+            pos++;
+        }
+        else if(ch == '+') {
+            quantifier = QUANTIFIER_REPEAT;
+            pos++;
+        }
+        else if(ch == '{') {
+            int start = pos;
+            skipPast('}');
+            String min = regex.substring(start + 1, pos - 1).split(",", -1)[0].trim();
+            quantifier = (NumberUtils.toInt(min, 0) == 0) ? QUANTIFIER_OPTIONAL : QUANTIFIER_REPEAT;
+        }
+        else
+            return QUANTIFIER_NONE;
+        //lazy or possessive
+        if(pos < regex.length() && (regex.charAt(pos) == '?' || regex.charAt(pos) == '+'))
+            pos++;
+        return quantifier;
+    }
+
+    /**
+     * 正则表达式的一个组成单元：字面字符、分组或者其他
+     */
+    private static class Atom {
+
+        final static Atom OTHER = new Atom(null, null);
+
+        final String literal;
+        final Query query;
+
+        private Atom(String literal, Query query) {
+            this.literal = literal;
+            this.query = query;
+        }
+
+        static Atom literal(String literal) {
+            return new Atom(literal, null);
+        }
+
+        static Atom group(Query query) {
+            return new Atom(null, query);
+        }
+    }
+}
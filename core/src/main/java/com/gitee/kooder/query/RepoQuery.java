@@ -88,10 +88,11 @@ public class RepoQuery extends QueryBase {
             try {
                 return parser.parse(searchKey);
             } catch (ParseException e) {
-                throw new QueryException("Failed to parse \""+searchKey+"\"", e);
+                throw new IllegalQueryException("Failed to parse \""+searchKey+"\"", e);
             }
         }
-        String q = QueryParser.escape(searchKey);
+        //关键字只分词一次，各个字段共用分词结果
+        QueryPlan plan = QueryPlan.of(searchKey);
 
         BooleanQuery.Builder builder = new BooleanQuery.Builder();
         //只搜索公开仓库
@@ -104,13 +105,13 @@ public class RepoQuery extends QueryBase {
         //BoostQuery
         //如果调整  boost 就要调整 ScoreHelper 中的 SCORE_FACTOR
         BooleanQuery.Builder qbuilder = new BooleanQuery.Builder();
-        qbuilder.add(makeBoostQuery(Constants.FIELD_CATALOGS, q, 10.0f), BooleanClause.Occur.SHOULD);
-        qbuilder.add(makeBoostQuery(Constants.FIELD_NAME, q, SCORE_FACTOR), BooleanClause.Occur.SHOULD);
-        qbuilder.add(makeBoostQuery(Constants.FIELD_DESC, q, 1.0f), BooleanClause.Occur.SHOULD);
-        qbuilder.add(makeBoostQuery(Constants.FIELD_README, q, 0.5f), BooleanClause.Occur.SHOULD);
-        qbuilder.add(makeBoostQuery(Constants.FIELD_TAGS, q, 1.0f), BooleanClause.Occur.SHOULD);
+        qbuilder.add(makeBoostQuery(Constants.FIELD_CATALOGS, plan, 10.0f), BooleanClause.Occur.SHOULD);
+        qbuilder.add(makeBoostQuery(Constants.FIELD_NAME, plan, SCORE_FACTOR), BooleanClause.Occur.SHOULD);
+        qbuilder.add(makeBoostQuery(Constants.FIELD_DESC, plan, 1.0f), BooleanClause.Occur.SHOULD);
+        qbuilder.add(makeBoostQuery(Constants.FIELD_README, plan, 0.5f), BooleanClause.Occur.SHOULD);
+        qbuilder.add(makeBoostQuery(Constants.FIELD_TAGS, plan, 1.0f), BooleanClause.Occur.SHOULD);
         //qbuilder.add(makeBoostQuery("lang", q, 2.0f), BooleanClause.Occur.SHOULD);
-        qbuilder.add(makeBoostQuery(Constants.FIELD_USER_NAME, q, 1.0f), BooleanClause.Occur.SHOULD);
+        qbuilder.add(makeBoostQuery(Constants.FIELD_USER_NAME, plan, 1.0f), BooleanClause.Occur.SHOULD);
         qbuilder.setMinimumNumberShouldMatch(1);
 
         builder.add(qbuilder.build(), BooleanClause.Occur.MUST);
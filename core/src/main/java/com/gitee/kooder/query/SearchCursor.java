@@ -0,0 +1,195 @@
+/**
+ * Copyright (c) 2021, OSChina (oschina.net@gmail.com).
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitee.kooder.query;
+
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.SortedNumericSortField;
+import org.apache.lucene.search.SortedSetSortField;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.*;
+import java.util.Base64;
+
+/**
+ * 分页游标，把上一页最后一条结果（ScoreDoc/FieldDoc）编码成不透明的字符串
+ * 下一页通过 IndexSearcher.searchAfter 从该位置继续搜索，避免深度翻页时收集 page * pageSize 条结果
+ */
+public class SearchCursor {
+
+    private final static byte VERSION = 1;
+
+    private final static byte TYPE_NULL     = 0;
+    private final static byte TYPE_INT      = 1;
+    private final static byte TYPE_LONG     = 2;
+    private final static byte TYPE_FLOAT    = 3;
+    private final static byte TYPE_DOUBLE   = 4;
+    private final static byte TYPE_BYTES    = 5;
+
+    /**
+     * 编码游标
+     * @param doc  当前页最后一条结果
+     * @return
+     */
+    public static String encode(ScoreDoc doc) {
+        try (ByteArrayOutputStream bytes = new ByteArrayOutputStream(); DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(VERSION);
+            out.writeInt(doc.doc);
+            out.writeFloat(doc.score);
+            Object[] fields = (doc instanceof FieldDoc) ? ((FieldDoc) doc).fields : null;
+            out.writeInt(fields == null ? -1 : fields.length);
+            if (fields != null) {
+                for (Object field : fields)
+                    writeField(out, field);
+            }
+            out.flush();
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.toByteArray());
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Unsupported cursor value: " + doc, e);
+        }
+    }
+
+    /**
+     * 解码游标
+     * @param cursor
+     * @return
+     * @exception IllegalQueryException 游标格式不正确
+     */
+    public static ScoreDoc decode(String cursor) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(Base64.getUrlDecoder().decode(cursor)))) {
+            if (in.readByte() != VERSION)
+                throw new IllegalQueryException("Illegal cursor: " + cursor);
+            int doc = in.readInt();
+            float score = in.readFloat();
+            int fieldCount = in.readInt();
+            if (fieldCount < 0)
+                return new ScoreDoc(doc, score);
+            Object[] fields = new Object[fieldCount];
+            for (int i = 0; i < fieldCount; i++)
+                fields[i] = readField(in);
+            return new FieldDoc(doc, score, fields);
+        } catch (IOException | RuntimeException e) {
+            throw new IllegalQueryException("Illegal cursor: " + cursor, e);
+        }
+    }
+
+    /**
+     * 解码游标并检查是否与本次搜索的排序一致，过期、篡改或者其他排序方式下生成的游标不能用于 searchAfter
+     * @param cursor
+     * @param sort  本次搜索的排序方式，null 表示按相关度排序
+     * @return
+     * @exception IllegalQueryException 游标格式不正确或者与排序方式不匹配
+     */
+    public static ScoreDoc decode(String cursor, Sort sort) {
+        ScoreDoc doc = decode(cursor);
+        if (sort == null) {
+            if (doc instanceof FieldDoc)
+                throw new IllegalQueryException("Illegal cursor: " + cursor);
+            return doc;
+        }
+        SortField[] sortFields = sort.getSort();
+        if (!(doc instanceof FieldDoc) || ((FieldDoc) doc).fields.length != sortFields.length)
+            throw new IllegalQueryException("Illegal cursor: " + cursor);
+        Object[] fields = ((FieldDoc) doc).fields;
+        for (int i = 0; i < sortFields.length; i++) {
+            Class<?> valueType = valueType(sortFields[i]);
+            if (valueType == null)
+                continue;
+            if (fields[i] == null ? valueType != BytesRef.class : !valueType.isInstance(fields[i]))
+                throw new IllegalQueryException("Illegal cursor: " + cursor);
+        }
+        return doc;
+    }
+
+    /**
+     * 排序字段在 FieldDoc 中的取值类型，字符串排序的值可以为 null，未知的自定义排序返回 null 不检查
+     * @param field
+     * @return
+     */
+    private static Class<?> valueType(SortField field) {
+        if (field instanceof SortedSetSortField)
+            return BytesRef.class;
+        SortField.Type type = (field instanceof SortedNumericSortField) ?
+                ((SortedNumericSortField) field).getNumericType() : field.getType();
+        switch (type) {
+            case SCORE:
+            case FLOAT:
+                return Float.class;
+            case DOC:
+            case INT:
+                return Integer.class;
+            case LONG:
+                return Long.class;
+            case DOUBLE:
+                return Double.class;
+            case STRING:
+            case STRING_VAL:
+                return BytesRef.class;
+            default:
+                return null;
+        }
+    }
+
+    private static void writeField(DataOutputStream out, Object field) throws IOException {
+        if (field == null) {
+            out.writeByte(TYPE_NULL);
+        } else if (field instanceof Integer) {
+            out.writeByte(TYPE_INT);
+            out.writeInt((Integer) field);
+        } else if (field instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            out.writeLong((Long) field);
+        } else if (field instanceof Float) {
+            out.writeByte(TYPE_FLOAT);
+            out.writeFloat((Float) field);
+        } else if (field instanceof Double) {
+            out.writeByte(TYPE_DOUBLE);
+            out.writeDouble((Double) field);
+        } else if (field instanceof BytesRef) {
+            BytesRef ref = (BytesRef) field;
+            out.writeByte(TYPE_BYTES);
+            out.writeInt(ref.length);
+            out.write(ref.bytes, ref.offset, ref.length);
+        } else
+            throw new IOException("Unsupported sort value type: " + field.getClass());
+    }
+
+    private static Object readField(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case TYPE_NULL:
+                return null;
+            case TYPE_INT:
+                return in.readInt();
+            case TYPE_LONG:
+                return in.readLong();
+            case TYPE_FLOAT:
+                return in.readFloat();
+            case TYPE_DOUBLE:
+                return in.readDouble();
+            case TYPE_BYTES:
+                int length = in.readInt();
+                if (length < 0 || length > in.available())
+                    throw new IOException("Illegal sort value length: " + length);
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                return new BytesRef(bytes);
+        }
+        throw new IOException("Unknown sort value type: " + type);
+    }
+}
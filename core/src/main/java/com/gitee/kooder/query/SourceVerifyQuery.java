@@ -0,0 +1,117 @@
+/**
+ * Copyright (c) 2021, OSChina (oschina.net@gmail.com).
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitee.kooder.query;
+
+import com.gitee.kooder.core.Constants;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.*;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * 基于三元组索引的源码查询基类：先用三元组查询得到候选文档，再读取源码进行验证
+ * 候选文档的验证放在 TwoPhaseIterator 中，只有通过其他条件（企业、仓库等）筛选后的文档才会读取源码
+ */
+public abstract class SourceVerifyQuery extends Query {
+
+    private final static Set<String> FIELDS_TO_LOAD = Collections.singleton(Constants.FIELD_SOURCE);
+
+    protected final Query approximation;
+
+    /**
+     * @param approximation  三元组查询，匹配结果必须包含所有满足条件的文档
+     */
+    protected SourceVerifyQuery(Query approximation) {
+        this.approximation = Objects.requireNonNull(approximation);
+    }
+
+    /**
+     * 验证源码是否满足查询条件
+     * @param source
+     * @return
+     */
+    protected abstract boolean verify(String source);
+
+    /**
+     * 使用改写后的三元组查询创建新的查询对象
+     * @param approximation
+     * @return
+     */
+    protected abstract SourceVerifyQuery withApproximation(Query approximation);
+
+    /**
+     * 验证结果是否只取决于索引内容，可以被查询缓存
+     * @return
+     */
+    protected boolean isCacheable() {
+        return true;
+    }
+
+    @Override
+    public Query rewrite(IndexReader reader) throws IOException {
+        Query rewritten = approximation.rewrite(reader);
+        if(rewritten != approximation)
+            return withApproximation(rewritten);
+        return super.rewrite(reader);
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher, ScoreMode scoreMode, float boost) throws IOException {
+        Weight approximationWeight = searcher.createWeight(approximation, ScoreMode.COMPLETE_NO_SCORES, 1.0f);
+        return new ConstantScoreWeight(this, boost) {
+            @Override
+            public Scorer scorer(LeafReaderContext context) throws IOException {
+                Scorer scorer = approximationWeight.scorer(context);
+                if(scorer == null)
+                    return null;
+                LeafReader reader = context.reader();
+                DocIdSetIterator candidates = scorer.iterator();
+                TwoPhaseIterator verifier = new TwoPhaseIterator(candidates) {
+                    @Override
+                    public boolean matches() throws IOException {
+                        Document doc = reader.document(candidates.docID(), FIELDS_TO_LOAD);
+                        String source = doc.get(Constants.FIELD_SOURCE);
+                        return source != null && verify(source);
+                    }
+
+                    @Override
+                    public float matchCost() {
+                        return 1000f; //需要读取并扫描整个源码
+                    }
+                };
+                return new ConstantScoreScorer(this, score(), scoreMode, verifier);
+            }
+
+            @Override
+            public boolean isCacheable(LeafReaderContext ctx) {
+                return SourceVerifyQuery.this.isCacheable() && approximationWeight.isCacheable(ctx);
+            }
+        };
+    }
+
+    @Override
+    public void visit(QueryVisitor visitor) {
+        if(visitor.acceptField(Constants.FIELD_SOURCE))
+            visitor.visitLeaf(this);
+    }
+
+}
@@ -0,0 +1,276 @@
+/**
+ * Copyright (c) 2021, OSChina (oschina.net@gmail.com).
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitee.kooder.queue;
+
+import com.gitee.kooder.models.DocValuesPatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 合并同一个对象的待处理任务：
+ * 租借到的任务按 (类型, 对象 id) 暂存一个去抖窗口，窗口内同一个对象的新任务覆盖旧任务（以最后一次为准），
+ * 代码仓库在窗口内的多次推送只需要拉取一次；部分更新任务之间合并字段值，部分更新之前的完整写入任务会立即放出，保证先后顺序
+ * 被覆盖的任务在最终任务确认时一起确认，失败时一起重新投递，因此合并不会降低队列的可靠性
+ */
+public class CoalescingQueueProvider implements QueueProvider {
+
+    private final static Logger log = LoggerFactory.getLogger(CoalescingQueueProvider.class);
+
+    private final static int MAX_DELAY_WINDOWS = 10;    //持续有新任务时，最多推迟的窗口数
+
+    private final QueueProvider provider;
+    private final long window;
+    private final Map<String, Coalescer> coalescers = new ConcurrentHashMap<>();
+
+    /**
+     * @param provider  实际的队列
+     * @param window  去抖窗口(ms)，窗口内没有新任务后才处理
+     */
+    public CoalescingQueueProvider(QueueProvider provider, long window) {
+        this.provider = provider;
+        this.window = window;
+        for(String type : provider.getAllTypes())
+            coalescers.put(type, new Coalescer(type));
+    }
+
+    @Override
+    public String name() {
+        return provider.name();
+    }
+
+    @Override
+    public List<String> getAllTypes() {
+        return provider.getAllTypes();
+    }
+
+    @Override
+    public Queue queue(String type) {
+        Queue queue = provider.queue(type);
+        Coalescer coalescer = coalescers.computeIfAbsent(type, Coalescer::new);
+        return new Queue() {
+            @Override
+            public String type() {
+                return type;
+            }
+
+            @Override
+            public void push(Collection<QueueTask> tasks) {
+                queue.push(tasks);
+            }
+
+            /**
+             * 直接出队的任务不需要确认，不参与合并
+             * @param count
+             * @return
+             */
+            @Override
+            public List<QueueTask> pop(int count) {
+                return queue.pop(count);
+            }
+
+            @Override
+            public List<QueueTask> lease(int count) {
+                return coalescer.lease(queue, count);
+            }
+
+            @Override
+            public void ack(Collection<QueueTask> tasks) {
+                queue.ack(coalescer.release(tasks));
+            }
+
+            @Override
+            public void nack(Collection<QueueTask> tasks) {
+                queue.nack(coalescer.release(tasks));
+            }
+
+            @Override
+            public void close() throws Exception {
+                queue.close();
+            }
+        };
+    }
+
+    /**
+     * 有任务在等待去抖窗口结束时，最多等到最早的任务可以处理
+     * @param timeout
+     * @throws InterruptedException
+     */
+    @Override
+    public void await(long timeout) throws InterruptedException {
+        long delay = timeout;
+        long now = System.currentTimeMillis();
+        for(Coalescer coalescer : coalescers.values())
+            delay = Math.min(delay, coalescer.nextDueTime(now) - now);
+        provider.await(Math.max(delay, 1));
+    }
+
+    /**
+     * 合并任务的统计信息
+     * @return
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        coalescers.forEach((type, coalescer) -> {
+            Map<String, Object> typeStats = new LinkedHashMap<>();
+            typeStats.put("coalesced_count", coalescer.coalescedCount.get());
+            typeStats.put("pending_count", coalescer.pendingCount());
+            stats.put(type, typeStats);
+        });
+        return stats;
+    }
+
+    @Override
+    public void close() throws Exception {
+        provider.close();
+    }
+
+    /**
+     * 一个任务类型的待处理任务
+     */
+    private class Coalescer {
+
+        private final String type;
+        private final Map<String, Pending> pendings = new LinkedHashMap<>();  //按首次出现的顺序处理
+        private final Map<QueueTask, List<QueueTask>> superseded = Collections.synchronizedMap(new IdentityHashMap<>());
+        private final AtomicLong coalescedCount = new AtomicLong(0);
+
+        Coalescer(String type) {
+            this.type = type;
+        }
+
+        synchronized List<QueueTask> lease(Queue queue, int count) {
+            long now = System.currentTimeMillis();
+            List<QueueTask> ready = new ArrayList<>();
+            //等待中的任务过多时先不从队列中取新任务
+            if(pendings.size() < Math.max(count, 1) * MAX_DELAY_WINDOWS) {
+                for (QueueTask task : queue.lease(count))
+                    offer(task, now, ready);
+            }
+            Iterator<Pending> it = pendings.values().iterator();
+            while(it.hasNext()) {
+                Pending pending = it.next();
+                if(pending.isDue(now)) {
+                    it.remove();
+                    ready.add(pending.done());
+                }
+            }
+            return ready;
+        }
+
+        private void offer(QueueTask task, long now, List<QueueTask> ready) {
+            //包含多个对象的任务无法按对象合并，直接处理，其中的对象有等待中的任务时先放出等待的任务，保证先后顺序
+            List<Long> ids = task.getObjectIds();
+            if(ids.size() != 1) {
+                for(Long id : ids) {
+                    Pending pending = pendings.remove(String.valueOf(id));
+                    if(pending != null)
+                        ready.add(pending.done());
+                }
+                ready.add(task);
+                return;
+            }
+            String key = String.valueOf(ids.get(0));
+            Pending pending = pendings.get(key);
+            if(pending == null) {
+                pendings.put(key, new Pending(task, now));
+                return;
+            }
+            boolean isPatch = QueueTask.ACTION_PATCH.equals(task.getAction());
+            if(isPatch && !QueueTask.ACTION_PATCH.equals(pending.task.getAction())) {
+                //部分更新需要在之前的完整写入之后执行
+                pendings.remove(key);
+                ready.add(pending.done());
+                pendings.put(key, new Pending(task, now));
+                return;
+            }
+            if(isPatch) {
+                DocValuesPatch oldPatch = pending.task.getPatches().get(0);
+                DocValuesPatch newPatch = task.getPatches().get(0);
+                oldPatch.getValues().forEach(newPatch.getValues()::putIfAbsent);
+            }
+            pending.supersede(task, now);
+            coalescedCount.incrementAndGet();
+            log.debug("Task<{}> of object {} coalesced, action = {}", type, key, task.getAction());
+        }
+
+        /**
+         * 取出被最终任务覆盖的任务，和最终任务一起确认或者重新投递
+         * @param tasks
+         * @return
+         */
+        List<QueueTask> release(Collection<QueueTask> tasks) {
+            List<QueueTask> all = new ArrayList<>(tasks);
+            for(QueueTask task : tasks) {
+                List<QueueTask> olds = superseded.remove(task);
+                if(olds != null)
+                    all.addAll(olds);
+            }
+            return all;
+        }
+
+        synchronized long nextDueTime(long now) {
+            long dueTime = Long.MAX_VALUE;
+            for(Pending pending : pendings.values())
+                dueTime = Math.min(dueTime, pending.dueTime());
+            return Math.max(dueTime, now);
+        }
+
+        synchronized int pendingCount() {
+            return pendings.size();
+        }
+
+        /**
+         * 等待去抖窗口结束的任务
+         */
+        private class Pending {
+
+            QueueTask task;
+            final List<QueueTask> olds = new ArrayList<>();
+            final long firstSeen;
+            long lastSeen;
+
+            Pending(QueueTask task, long now) {
+                this.task = task;
+                this.firstSeen = now;
+                this.lastSeen = now;
+            }
+
+            void supersede(QueueTask newTask, long now) {
+                olds.add(task);
+                task = newTask;
+                lastSeen = now;
+            }
+
+            long dueTime() {
+                return Math.min(lastSeen + window, firstSeen + window * MAX_DELAY_WINDOWS);
+            }
+
+            boolean isDue(long now) {
+                return now >= dueTime();
+            }
+
+            QueueTask done() {
+                if(!olds.isEmpty())
+                    superseded.put(task, olds);
+                return task;
+            }
+        }
+    }
+}
@@ -36,9 +36,11 @@ public class EmbedQueueProvider implements QueueProvider {
     private final static Logger log = LoggerFactory.getLogger(EmbedQueueProvider.class);
 
     private Map<String, FileQueue<QueueTask>> fileQueues = new ConcurrentHashMap<>();
+    private Map<String, LeaseJournal> journals = new ConcurrentHashMap<>();
 
     public EmbedQueueProvider(Properties props) {
         int batch_size = NumberUtils.toInt(props.getProperty("embed.batch_size", "10000"), 10000);
+        int max_retries = NumberUtils.toInt(props.getProperty("max_retries"), 3);
 
         Path path = checkoutPath(KooderConfig.getPath(props.getProperty("embed.path")));
         for(String type : getAllTypes()) {
@@ -48,6 +50,12 @@ public class EmbedQueueProvider implements QueueProvider {
                     .restoreFromDisk(true)
                     .batchSize(batch_size)
                     .build());
+            try {
+                journals.put(type, new LeaseJournal(path.resolve(type + ".leases"), path.resolve(type + ".dead"),
+                        max_retries, fileQueues.get(type)));
+            } catch(IOException e) {
+                log.error("Failed to open lease journal of '{}', tasks of this type will not be acknowledged", type, e);
+            }
         }
     }
 
@@ -101,6 +109,34 @@ public class EmbedQueueProvider implements QueueProvider {
                 return tasks;
             }
 
+            /**
+             * 出队的同时写入租约日志，租约日志无法打开时退化为直接出队
+             * @param count
+             * @return
+             */
+            @Override
+            public List<QueueTask> lease(int count) {
+                List<QueueTask> tasks = pop(count);
+                LeaseJournal journal = journals.get(type);
+                if(journal != null)
+                    journal.lease(tasks);
+                return tasks;
+            }
+
+            @Override
+            public void ack(Collection<QueueTask> tasks) {
+                LeaseJournal journal = journals.get(type);
+                if(journal != null)
+                    journal.ack(tasks);
+            }
+
+            @Override
+            public void nack(Collection<QueueTask> tasks) {
+                LeaseJournal journal = journals.get(type);
+                if(journal != null)
+                    journal.nack(tasks);
+            }
+
             @Override
             public void close() {
                 fileQueues.get(type).close();
@@ -110,6 +146,7 @@ public class EmbedQueueProvider implements QueueProvider {
 
     @Override
     public void close() {
+        journals.values().forEach(j -> j.close());
         fileQueues.values().forEach(q -> q.close());
     }
 }
@@ -0,0 +1,227 @@
+/**
+ * Copyright (c) 2021, OSChina (oschina.net@gmail.com).
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitee.kooder.queue;
+
+import org.infobip.lib.popout.FileQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 嵌入式队列的租约日志：FileQueue 出队即删除，租借的任务先追加写入日志，确认后再追加一条确认记录
+ * 启动时日志中没有确认的任务（上次进程崩溃时正在处理）会被重新放回队列，重试次数超过上限的任务写入死信文件
+ * 日志格式为每行一条记录：
+ * L \t 租约标识 \t 重试次数 \t 任务json
+ * A \t 租约标识
+ */
+class LeaseJournal implements AutoCloseable {
+
+    private final static Logger log = LoggerFactory.getLogger(LeaseJournal.class);
+
+    private final static int COMPACT_THRESHOLD = 10000;   //日志记录数超过该值并且大部分已经确认时重写日志
+
+    private final Path journalPath;
+    private final Path deadPath;
+    private final int maxRetries;
+    private final FileQueue<QueueTask> queue;
+
+    private final Map<String, String> inflight = new LinkedHashMap<>();    //租约标识 -> 日志记录
+    private final AtomicLong sequence = new AtomicLong(System.currentTimeMillis());
+    private BufferedWriter writer;
+    private int records = 0;
+
+    /**
+     * 打开租约日志，并把上次没有确认的任务重新放回队列
+     * @param journalPath  租约日志
+     * @param deadPath  死信文件，每行一个任务 json
+     * @param maxRetries  最多重新投递的次数
+     * @param queue
+     * @throws IOException
+     */
+    LeaseJournal(Path journalPath, Path deadPath, int maxRetries, FileQueue<QueueTask> queue) throws IOException {
+        this.journalPath = journalPath;
+        this.deadPath = deadPath;
+        this.maxRetries = maxRetries;
+        this.queue = queue;
+        this.recover();
+        this.writer = Files.newBufferedWriter(journalPath, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    }
+
+    private void recover() throws IOException {
+        if(!Files.exists(journalPath))
+            return;
+        Map<String, String> pending = new LinkedHashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(journalPath, StandardCharsets.UTF_8)) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 4);
+                if(fields.length == 4 && "L".equals(fields[0]))
+                    pending.put(fields[1], line);
+                else if(fields.length == 2 && "A".equals(fields[0]))
+                    pending.remove(fields[1]);
+            }
+        }
+        int count = 0;
+        for(String line : pending.values()) {
+            QueueTask task = readTask(line);
+            if(task != null) {
+                requeue(task);
+                count ++;
+            }
+        }
+        if(count > 0)
+            log.warn("{} unacknowledged tasks recovered from {}", count, journalPath);
+    }
+
+    /**
+     * 记录租借的任务，并为任务分配租约标识
+     * @param tasks
+     */
+    synchronized void lease(List<QueueTask> tasks) {
+        if(tasks.isEmpty())
+            return;
+        for(QueueTask task : tasks) {
+            String leaseId = Long.toString(sequence.incrementAndGet(), Character.MAX_RADIX);
+            task.setLeaseId(leaseId);
+            String line = "L\t" + leaseId + "\t" + task.getRetries() + "\t" + task.json();
+            inflight.put(leaseId, line);
+            write(line);
+        }
+        flush();
+    }
+
+    /**
+     * 确认任务已经处理完成
+     * @param tasks
+     */
+    synchronized void ack(Collection<QueueTask> tasks) {
+        for(QueueTask task : tasks) {
+            if(task.getLeaseId() != null && inflight.remove(task.getLeaseId()) != null)
+                write("A\t" + task.getLeaseId());
+        }
+        flush();
+        compact();
+    }
+
+    /**
+     * 任务处理失败，先放回队列再写入确认记录，保证任务不会丢失
+     * @param tasks
+     */
+    synchronized void nack(Collection<QueueTask> tasks) {
+        for(QueueTask task : tasks) {
+            String leaseId = task.getLeaseId();
+            if(leaseId != null && inflight.containsKey(leaseId)) {
+                requeue(task);
+                inflight.remove(leaseId);
+                write("A\t" + leaseId);
+            }
+        }
+        flush();
+        compact();
+    }
+
+    /**
+     * 重新投递任务，超过最大重试次数时写入死信文件
+     * @param task
+     */
+    private void requeue(QueueTask task) {
+        task.setRetries(task.getRetries() + 1);
+        task.setLeaseId(null);
+        if(task.getRetries() <= maxRetries) {
+            queue.add(task);
+            return;
+        }
+        log.warn("Task moved to dead letter file {} after {} retries: {}", deadPath, maxRetries, task);
+        try {
+            Files.write(deadPath, Collections.singletonList(task.json()), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static QueueTask readTask(String line) {
+        String[] fields = line.split("\t", 4);
+        QueueTask task = QueueTask.parse(fields[3]);
+        if(task == null)
+            log.warn("Illegal task in lease journal: {}", line);
+        else
+            task.setRetries(Integer.parseInt(fields[2]));
+        return task;
+    }
+
+    /**
+     * 没有未确认的任务时清空日志；日志中大部分记录都已经确认时只保留未确认的任务重写日志
+     */
+    private void compact() {
+        boolean compactable = inflight.isEmpty() ? records > 0
+                : records >= COMPACT_THRESHOLD && records >= inflight.size() * 4;
+        if(!compactable)
+            return;
+        try {
+            writer.close();
+            Path tmpPath = journalPath.resolveSibling(journalPath.getFileName() + ".tmp");
+            Files.write(tmpPath, inflight.values(), StandardCharsets.UTF_8);
+            Files.move(tmpPath, journalPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            writer = Files.newBufferedWriter(journalPath, StandardCharsets.UTF_8, StandardOpenOption.APPEND, StandardOpenOption.WRITE);
+            records = inflight.size();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void write(String line) {
+        try {
+            writer.write(line);
+            writer.newLine();
+            records ++;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void flush() {
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * 关闭日志，未确认的任务在下次启动时重新投递
+     */
+    @Override
+    public synchronized void close() {
+        try {
+            writer.close();
+        } catch (IOException e) {
+            log.error("Failed to close lease journal {}", journalPath, e);
+        }
+    }
+}
@@ -42,4 +42,28 @@ public interface Queue extends AutoCloseable{
      */
     List<QueueTask> pop(int count) ;
 
+    /**
+     * 从队列租借任务：任务处理完后调用 ack 才会从队列中删除，处理过程中进程崩溃时任务会被重新投递（至少一次）
+     * 默认实现直接出队，不保证可靠
+     * @param count
+     * @return
+     */
+    default List<QueueTask> lease(int count) {
+        return pop(count);
+    }
+
+    /**
+     * 确认租借的任务已经处理完成
+     * @param tasks
+     */
+    default void ack(Collection<QueueTask> tasks) {
+    }
+
+    /**
+     * 租借的任务处理失败，重新投递，重试次数超过上限后放入死信队列
+     * @param tasks
+     */
+    default void nack(Collection<QueueTask> tasks) {
+    }
+
 }
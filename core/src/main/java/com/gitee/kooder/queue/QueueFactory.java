@@ -17,6 +17,7 @@ package com.gitee.kooder.queue;
 
 import com.gitee.kooder.core.KooderConfig;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 
 import java.util.Properties;
 
@@ -35,6 +36,9 @@ public class QueueFactory {
             provider = new RedisQueueProvider(props);
         else if("embed".equalsIgnoreCase(type))
             provider = new EmbedQueueProvider(props);
+        long coalesceWindow = NumberUtils.toLong(props.getProperty("coalesce_window"), 1000);
+        if(provider != null && coalesceWindow > 0)
+            provider = new CoalescingQueueProvider(provider, coalesceWindow);
     }
 
     public final static QueueProvider getProvider() {
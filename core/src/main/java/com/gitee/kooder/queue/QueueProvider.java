@@ -49,4 +49,14 @@ public interface QueueProvider extends AutoCloseable {
      */
     Queue queue(String type);
 
+    /**
+     * 所有队列都没有任务时等待新任务，最多等待 timeout 毫秒
+     * 默认直接休眠，支持阻塞读取的队列在有新任务时立即返回
+     * @param timeout
+     * @throws InterruptedException
+     */
+    default void await(long timeout) throws InterruptedException {
+        Thread.sleep(timeout);
+    }
+
 }
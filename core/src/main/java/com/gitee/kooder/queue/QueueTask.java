@@ -23,9 +23,11 @@ import java.util.List;
 import java.util.Map;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.gitee.kooder.models.CodeRepository;
+import com.gitee.kooder.models.DocValuesPatch;
 import com.gitee.kooder.core.Constants;
 import com.gitee.kooder.index.IndexManager;
 
@@ -34,6 +36,7 @@ import com.gitee.kooder.models.Repository;
 import com.gitee.kooder.models.Searchable;
 import com.gitee.kooder.utils.JsonUtils;
 import org.apache.commons.beanutils.BeanUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.apache.lucene.facet.taxonomy.TaxonomyWriter;
 import org.apache.lucene.index.IndexWriter;
 import org.slf4j.Logger;
@@ -60,10 +63,14 @@ public class QueueTask implements Serializable {
     public transient final static String ACTION_ADD            = "add"; //添加
     public transient final static String ACTION_UPDATE         = "update"; //修改
     public transient final static String ACTION_DELETE         = "delete"; //删除
+    public transient final static String ACTION_PATCH          = "patch"; //只修改数值字段，见 DocValuesPatch
 
     private String type;    //对象类型
     private String action;  //动作（添加、删除、修改）
     private List<Searchable> objects = new ArrayList<>();    //objects list
+    private List<DocValuesPatch> patches = new ArrayList<>();   //ACTION_PATCH 任务中的部分更新对象
+    private int retries;                //处理失败后重新投递的次数
+    private transient String leaseId;   //租借任务的标识，确认任务时使用
 
     public QueueTask(){}
 
@@ -87,6 +94,14 @@ public class QueueTask implements Serializable {
         push(type, ACTION_DELETE, obj);
     }
 
+    public static void patch(String type, DocValuesPatch...obj) {
+        QueueTask task = new QueueTask();
+        task.type = type;
+        task.action = ACTION_PATCH;
+        task.patches.addAll(Arrays.asList(obj));
+        QueueFactory.getProvider().queue(type).push(Arrays.asList(task));
+    }
+
     public String getType() {
         return type;
     }
@@ -100,7 +115,8 @@ public class QueueTask implements Serializable {
     }
 
     public final static boolean isAvailAction(String p_action) {
-        return ACTION_ADD.equalsIgnoreCase(p_action) || ACTION_DELETE.equalsIgnoreCase(p_action) || ACTION_UPDATE.equalsIgnoreCase(p_action);
+        return ACTION_ADD.equalsIgnoreCase(p_action) || ACTION_DELETE.equalsIgnoreCase(p_action) || ACTION_UPDATE.equalsIgnoreCase(p_action)
+                || ACTION_PATCH.equalsIgnoreCase(p_action);
     }
 
     public boolean isCodeTask() {
@@ -119,26 +135,85 @@ public class QueueTask implements Serializable {
         return objects;
     }
 
+    @JsonInclude(JsonInclude.Include.NON_EMPTY)
+    public List<DocValuesPatch> getPatches() {
+        return patches;
+    }
+
+    public void setPatches(List<DocValuesPatch> patches) {
+        this.patches = patches;
+    }
+
+    /**
+     * 任务涉及的所有对象 id，包括部分更新的对象
+     * @return
+     */
+    @JsonIgnore
+    public List<Long> getObjectIds() {
+        List<Long> ids = new ArrayList<>();
+        objects.forEach(obj -> ids.add(obj.getId()));
+        patches.forEach(patch -> ids.add(patch.getId()));
+        return ids;
+    }
+
+    @JsonIgnore
+    public int getRetries() {
+        return retries;
+    }
+
+    @JsonIgnore
+    public void setRetries(int retries) {
+        this.retries = retries;
+    }
+
+    @JsonIgnore
+    public String getLeaseId() {
+        return leaseId;
+    }
+
+    @JsonIgnore
+    public void setLeaseId(String leaseId) {
+        this.leaseId = leaseId;
+    }
+
 
     @JsonProperty("objects")
     public void readObjects(Map<String,Object>[] values) throws Exception {
         for(Map<String, Object> value : values) {
+            if(ACTION_PATCH.equals(action)) {   //兼容部分更新对象放在 objects 中的旧任务
+                patches.add(readPatch(value));
+                continue;
+            }
             Searchable obj = null;
             switch(type){
                 case Constants.TYPE_CODE:
                     obj = new CodeRepository();
+                    BeanUtils.populate(obj, value);
                     break;
                 case Constants.TYPE_REPOSITORY:
-                    obj = new Repository();
+                    //仓库和 Issue 中的 enterprise/project/owner 等是嵌套对象，BeanUtils 无法转换
+                    obj = JsonUtils.readValue(JsonUtils.toJson(value), Repository.class);
                     break;
                 case Constants.TYPE_ISSUE:
-                    obj = new Issue();
+                    obj = JsonUtils.readValue(JsonUtils.toJson(value), Issue.class);
             }
-            BeanUtils.populate(obj, value);
+            if(obj == null)
+                throw new IllegalArgumentException("Illegal object of task<" + type + ">: " + value);
             objects.add(obj);
         }
     }
 
+    private static DocValuesPatch readPatch(Map<String, Object> value) {
+        DocValuesPatch patch = new DocValuesPatch();
+        value.forEach((field, v) -> {
+            if("id".equals(field))
+                patch.setId(NumberUtils.toLong(String.valueOf(v)));
+            else if(!"doc_id".equals(field) && !"doc_score".equals(field))
+                patch.setValue(field, v);
+        });
+        return patch;
+    }
+
     public void addObject(Searchable obj) {
         objects.add(obj);
     }
@@ -146,6 +221,14 @@ public class QueueTask implements Serializable {
     @JsonIgnore
     public void setJsonObjects(String json) {
         TypeReference typeRefer;
+        if(ACTION_PATCH.equals(action)) {
+            List<DocValuesPatch> patches = JsonUtils.readValue(json, new TypeReference<List<DocValuesPatch>>(){});
+            if(patches == null)
+                throw new IllegalArgumentException("Illegal patch objects: " + json);
+            patches.forEach(patch -> patch.getDocValuesFields(type)); //检查字段是否可以部分更新
+            this.patches = patches;
+            return;
+        }
         switch(type) {
             case Constants.TYPE_CODE:
                 typeRefer = new TypeReference<List<CodeRepository>>(){};
@@ -200,6 +283,7 @@ public class QueueTask implements Serializable {
                 "type='" + type + '\'' +
                 ", action='" + action + '\'' +
                 ", objects=" + objects +
+                (patches.isEmpty() ? "" : ", patches=" + patches) +
                 '}';
     }
 
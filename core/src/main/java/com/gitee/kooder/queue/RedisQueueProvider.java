@@ -15,9 +15,15 @@
  */
 package com.gitee.kooder.queue;
 
+import io.lettuce.core.LettuceFutures;
 import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisCommandInterruptedException;
+import io.lettuce.core.RedisCommandTimeoutException;
+import io.lettuce.core.RedisFuture;
 import io.lettuce.core.RedisURI;
+import io.lettuce.core.ScriptOutputType;
 import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.async.RedisAsyncCommands;
 import io.lettuce.core.api.sync.RedisCommands;
 import org.apache.commons.lang3.math.NumberUtils;
 import org.slf4j.Logger;
@@ -26,24 +32,110 @@ import org.slf4j.LoggerFactory;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Objects;
 import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * 使用 Redis 队列
+ * 所有队列共享一个长连接（Lettuce 的连接是线程安全的），批量出队通过 Lua 脚本一次完成 LRANGE + LTRIM
+ * 开启 blocking 后入队时同时写入一个信号，索引线程空闲时用单独的连接 BLPOP 等待信号，有新任务立即返回
+ * 租借的任务放入按租约到期时间排序的 zset，确认后才删除，租约过期后重新投递，多次失败的任务放入死信队列
+ * （BLMOVE 需要 Redis 6.2，这里用 Lua 脚本在多个结构之间移动任务，兼容更早的 Redis 版本）
  * @author Winter Lau<javayou@gmail.com>
  */
 public class RedisQueueProvider implements QueueProvider {
 
     private final static Logger log = LoggerFactory.getLogger(RedisQueueProvider.class);
 
+    private final static String POP_SCRIPT =
+            "local tasks = redis.call('LRANGE', KEYS[1], 0, tonumber(ARGV[1]) - 1)\n" +
+            "if #tasks > 0 then redis.call('LTRIM', KEYS[1], #tasks, -1) end\n" +
+            "return tasks";
+
+    /*
+     * 可靠队列的数据结构，所有脚本的 KEYS 依次为：
+     * 1. 任务内容(hash: 任务标识 -> json)  2. 待处理任务(list: 任务标识)  3. 租借中的任务(zset: 任务标识 -> 租约到期时间)
+     * 4. 重试次数(hash: 任务标识 -> 次数)  5. 死信队列(list: json)
+     * 队列中只保存任务标识，任务在各个结构之间的移动都在脚本中完成，不需要解析 json
+     */
+    private final static String PUSH_SCRIPT =
+            "for i = 1, #ARGV, 2 do\n" +
+            "  redis.call('HSET', KEYS[1], ARGV[i], ARGV[i + 1])\n" +
+            "  redis.call('RPUSH', KEYS[2], ARGV[i])\n" +
+            "end\n" +
+            "return #ARGV / 2";
+
+    //重新投递一个任务，超过最大重试次数时放入死信队列，max_retries 为脚本中的局部变量
+    private final static String REQUEUE_FUNCTION =
+            "local function requeue(id)\n" +
+            "  if redis.call('HINCRBY', KEYS[4], id, 1) > max_retries then\n" +
+            "    local json = redis.call('HGET', KEYS[1], id)\n" +
+            "    if json then redis.call('RPUSH', KEYS[5], json) end\n" +
+            "    redis.call('HDEL', KEYS[1], id)\n" +
+            "    redis.call('HDEL', KEYS[4], id)\n" +
+            "  else\n" +
+            "    redis.call('RPUSH', KEYS[2], id)\n" +
+            "  end\n" +
+            "end\n";
+
+    //ARGV: count, now, deadline, max_retries ; 先回收租约过期的任务，再租借新任务，返回 [标识, json, 重试次数, ...]
+    private final static String LEASE_SCRIPT =
+            "local max_retries = tonumber(ARGV[4])\n" +
+            REQUEUE_FUNCTION +
+            "for _, id in ipairs(redis.call('ZRANGEBYSCORE', KEYS[3], '-inf', ARGV[2])) do\n" +
+            "  redis.call('ZREM', KEYS[3], id)\n" +
+            "  requeue(id)\n" +
+            "end\n" +
+            "local ids = redis.call('LRANGE', KEYS[2], 0, tonumber(ARGV[1]) - 1)\n" +
+            "if #ids > 0 then redis.call('LTRIM', KEYS[2], #ids, -1) end\n" +
+            "local result = {}\n" +
+            "for _, id in ipairs(ids) do\n" +
+            "  local json = redis.call('HGET', KEYS[1], id)\n" +
+            "  if json then\n" +
+            "    redis.call('ZADD', KEYS[3], ARGV[3], id)\n" +
+            "    table.insert(result, id)\n" +
+            "    table.insert(result, json)\n" +
+            "    table.insert(result, redis.call('HGET', KEYS[4], id) or '0')\n" +
+            "  end\n" +
+            "end\n" +
+            "return result";
+
+    //ARGV: 任务标识列表
+    private final static String ACK_SCRIPT =
+            "for _, id in ipairs(ARGV) do\n" +
+            "  redis.call('ZREM', KEYS[3], id)\n" +
+            "  redis.call('HDEL', KEYS[1], id)\n" +
+            "  redis.call('HDEL', KEYS[4], id)\n" +
+            "end\n" +
+            "return #ARGV";
+
+    //ARGV: max_retries, 任务标识列表 ; 租约已经过期被回收的任务不再处理
+    private final static String NACK_SCRIPT =
+            "local max_retries = tonumber(ARGV[1])\n" +
+            REQUEUE_FUNCTION +
+            "for i = 2, #ARGV do\n" +
+            "  if redis.call('ZREM', KEYS[3], ARGV[i]) == 1 then requeue(ARGV[i]) end\n" +
+            "end\n" +
+            "return #ARGV - 1";
+
     private String host;
     private int port;
     private int database;
     private String baseKey;
+    private String signalKey;   //有新任务时写入的信号
     private String username;
     private String password;
+    private boolean blocking;   //空闲时是否阻塞等待新任务
+    private long leaseTimeout;  //租借任务的超时时间(ms)，超时未确认的任务会被重新投递
+    private int maxRetries;     //任务最多重新投递的次数，超过后放入死信队列
 
     private RedisClient client;
+    private StatefulRedisConnection<String, String> connection;
+    private StatefulRedisConnection<String, String> blockingConnection; //BLPOP 会阻塞连接，不能和其他命令共用
+    private Set<String> legacyDrained = ConcurrentHashMap.newKeySet();   //旧版本队列中已经没有遗留任务的类型
 
     /**
      * Connect to redis
@@ -54,8 +146,12 @@ public class RedisQueueProvider implements QueueProvider {
         this.port = NumberUtils.toInt(props.getProperty("redis.port"), 6379);
         this.database = NumberUtils.toInt(props.getProperty("redis.database"), 1);
         this.baseKey = props.getProperty("redis.key", "gsearch-queue");
+        this.signalKey = "signal@" + baseKey;
         this.username = props.getProperty("username");
         this.password = props.getProperty("password");
+        this.blocking = Boolean.valueOf(props.getProperty("redis.blocking", "true").trim());
+        this.leaseTimeout = NumberUtils.toLong(props.getProperty("redis.lease_timeout"), 1800) * 1000;
+        this.maxRetries = NumberUtils.toInt(props.getProperty("max_retries"), 3);
 
         RedisURI uri = RedisURI.create(host,port);
         uri.setDatabase(this.database);
@@ -65,16 +161,14 @@ public class RedisQueueProvider implements QueueProvider {
             uri.setUsername(username);
 
         this.client = RedisClient.create(uri);
+        this.connection = client.connect();
 
-        log.info("Connected to {} at {}}:{}}\n", getRedisVersion(), this.host, this.port);
+        log.info("Connected to {} at {}:{}\n", getRedisVersion(), this.host, this.port);
 
     }
 
     private String getRedisVersion() {
-        try (StatefulRedisConnection<String, String> connection = client.connect()) {
-            RedisCommands<String, String> cmd = connection.sync();
-            return cmd.info("redis_version");
-        }
+        return connection.sync().info("redis_version");
     }
 
     @Override
@@ -86,46 +180,151 @@ public class RedisQueueProvider implements QueueProvider {
     public Queue queue(String type) {
         return new Queue() {
 
-            private String key = type + '@' + baseKey;
+            private String key = type + '@' + baseKey;    //旧版本使用的任务列表，只读取其中遗留的任务
+            private String[] keys = new String[]{
+                    key + ":tasks", key + ":ready", key + ":leases", key + ":retries", key + ":dead"
+            };
 
             @Override
             public String type() {
                 return type;
             }
 
+            /**
+             * 任务和信号通过流水线发送，不等待前一个命令的返回
+             * @param tasks
+             */
             @Override
             public void push(Collection<QueueTask> tasks) {
-                try (StatefulRedisConnection<String, String> connection = client.connect()) {
-                    RedisCommands<String, String> cmd = connection.sync();
-                    cmd.rpush(key, tasks.stream().map(t -> t.json()).toArray(String[]::new));
+                if(tasks.isEmpty())
+                    return;
+                RedisAsyncCommands<String, String> cmd = connection.async();
+                List<RedisFuture<?>> futures = new ArrayList<>();
+                List<String> args = new ArrayList<>(tasks.size() * 2);
+                for(QueueTask task : tasks) {
+                    args.add(UUID.randomUUID().toString());
+                    args.add(task.json());
+                }
+                futures.add(cmd.eval(PUSH_SCRIPT, ScriptOutputType.INTEGER, keys, args.toArray(new String[0])));
+                if(blocking) {
+                    futures.add(cmd.rpush(signalKey, type));
+                    futures.add(cmd.ltrim(signalKey, -1, -1));  //只需要保留一个信号
                 }
+                //超时的时候任务可能没有写入队列，抛出异常让调用方（webhook 等）返回失败，由发送方重试
+                if(!LettuceFutures.awaitAll(connection.getTimeout(), futures.toArray(new RedisFuture<?>[0])))
+                    throw new RedisCommandTimeoutException("Timeout while pushing " + tasks.size() + " tasks to queue<" + type + ">");
             }
 
+            /**
+             * 直接出队，不需要确认
+             * @param count
+             * @return
+             */
             @Override
             public List<QueueTask> pop(int count) {
-                String json = null;
+                List<QueueTask> tasks = lease(count);
+                ack(tasks);
+                return tasks;
+            }
+
+            /**
+             * 先读取旧版本队列中遗留的任务（不需要确认），读完后从可靠队列中租借任务
+             * @param count
+             * @return
+             */
+            @Override
+            public List<QueueTask> lease(int count) {
                 List<QueueTask> tasks = new ArrayList<>();
-                try (StatefulRedisConnection<String, String> connection = client.connect()) {
-                    RedisCommands<String, String> cmd = connection.sync();
-                    do{
-                        json = cmd.lpop(key);
-                        if(json == null)
-                            break;
+                if(count <= 0)
+                    return tasks;
+                RedisCommands<String, String> cmd = connection.sync();
+                if(!legacyDrained.contains(type)) {
+                    List<String> jsons = cmd.eval(POP_SCRIPT, ScriptOutputType.MULTI, new String[]{key}, String.valueOf(count));
+                    for(String json : jsons) {
                         QueueTask task = QueueTask.parse(json);
                         if(task != null)
                             tasks.add(task);
-                    }while(tasks.size() < count);
+                    }
+                    if(!jsons.isEmpty())
+                        return tasks;
+                    legacyDrained.add(type);
+                }
+                long now = System.currentTimeMillis();
+                List<String> result = cmd.eval(LEASE_SCRIPT, ScriptOutputType.MULTI, keys,
+                        String.valueOf(count), String.valueOf(now), String.valueOf(now + leaseTimeout), String.valueOf(maxRetries));
+                for(int i = 0; i + 2 < result.size(); i += 3) {
+                    QueueTask task = QueueTask.parse(result.get(i + 1));
+                    if(task == null) {  //无法解析的任务直接放入死信队列
+                        log.warn("Illegal task moved to dead letter queue: {}", result.get(i + 1));
+                        cmd.eval(NACK_SCRIPT, ScriptOutputType.INTEGER, keys, "0", result.get(i));
+                        continue;
+                    }
+                    task.setLeaseId(result.get(i));
+                    task.setRetries(NumberUtils.toInt(result.get(i + 2)));
+                    tasks.add(task);
                 }
                 return tasks;
             }
 
+            @Override
+            public void ack(Collection<QueueTask> tasks) {
+                String[] ids = leaseIds(tasks);
+                if(ids.length > 0)
+                    connection.sync().eval(ACK_SCRIPT, ScriptOutputType.INTEGER, keys, ids);
+            }
+
+            @Override
+            public void nack(Collection<QueueTask> tasks) {
+                String[] ids = leaseIds(tasks);
+                if(ids.length > 0) {
+                    String[] args = new String[ids.length + 1];
+                    args[0] = String.valueOf(maxRetries);
+                    System.arraycopy(ids, 0, args, 1, ids.length);
+                    connection.sync().eval(NACK_SCRIPT, ScriptOutputType.INTEGER, keys, args);
+                }
+            }
+
+            private String[] leaseIds(Collection<QueueTask> tasks) {
+                return tasks.stream().map(QueueTask::getLeaseId).filter(Objects::nonNull).toArray(String[]::new);
+            }
+
             @Override
             public void close() {}
         };
     }
 
+    /**
+     * 阻塞等待新任务的信号，超时或者收到信号后返回
+     * BLPOP 的超时以秒为单位，不足一秒的等待（例如等待合并窗口结束）直接休眠
+     * @param timeout
+     * @throws InterruptedException
+     */
+    @Override
+    public void await(long timeout) throws InterruptedException {
+        if(!blocking || timeout < 1000) {
+            QueueProvider.super.await(timeout);
+            return;
+        }
+        try {
+            getBlockingConnection().sync().blpop(timeout / 1000, signalKey);
+        } catch (RedisCommandInterruptedException e) {
+            throw new InterruptedException(e.getMessage());
+        }
+    }
+
+    private synchronized StatefulRedisConnection<String, String> getBlockingConnection() {
+        if(blockingConnection == null)
+            blockingConnection = client.connect();
+        return blockingConnection;
+    }
+
     @Override
     public void close() {
+        synchronized (this) {
+            if(blockingConnection != null)
+                blockingConnection.close();
+        }
+        connection.close();
         client.shutdown();
     }
 }
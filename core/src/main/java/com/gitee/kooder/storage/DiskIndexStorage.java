@@ -20,23 +20,34 @@ import com.gitee.kooder.core.KooderConfig;
 import org.apache.commons.lang3.SystemUtils;
 import org.apache.commons.lang3.math.NumberUtils;
 import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.facet.taxonomy.SearcherTaxonomyManager;
 import org.apache.lucene.facet.taxonomy.TaxonomyReader;
 import org.apache.lucene.facet.taxonomy.TaxonomyWriter;
 import org.apache.lucene.facet.taxonomy.directory.DirectoryTaxonomyReader;
 import org.apache.lucene.facet.taxonomy.directory.DirectoryTaxonomyWriter;
 import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.IndexOptions;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.FileSwitchDirectory;
+import org.apache.lucene.store.MMapDirectory;
 import org.apache.lucene.store.NIOFSDirectory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.nio.file.*;
-import java.util.Properties;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+import static com.gitee.kooder.core.Constants.FIELD_SOURCE;
 import static com.gitee.kooder.core.Constants.TYPE_CODE;
 
 /**
@@ -47,9 +58,21 @@ public class DiskIndexStorage implements IndexStorage {
 
     private final static Logger log = LoggerFactory.getLogger(DiskIndexStorage.class);
 
+    public final static String DIRECTORY_NIO    = "nio";
+    public final static String DIRECTORY_MMAP   = "mmap";
+    public final static String DIRECTORY_HYBRID = "hybrid";
+
+    //hybrid 模式下通过 NIO 读取的存储字段和词向量文件，其余文件使用 mmap
+    private final static Set<String> NIO_EXTENSIONS = new HashSet<>(Arrays.asList("fdt", "fdx", "fdm", "tvd", "tvx", "tvm"));
+    //mmap 模式下默认预加载词典和倒排表
+    private final static String DEFAULT_PRELOAD_EXTENSIONS = "tip,tim,doc";
+
     private Path indexBasePath;
     private Properties props;
     private boolean isWindows = false;
+    private String directoryMode;       //nio|mmap|hybrid
+    private Set<String> preloadExtensions;  //mmap 打开时预加载到内存的文件扩展名
+    private boolean useUnmap;
 
     /**
      * 初始化磁盘索引存储
@@ -61,16 +84,115 @@ public class DiskIndexStorage implements IndexStorage {
         String idxPath = props.getProperty("disk.path");
         this.indexBasePath = KooderConfig.checkAndCreatePath(idxPath);
         isWindows = SystemUtils.IS_OS_WINDOWS;
+        this.directoryMode = props.getProperty("disk.directory", "").trim().toLowerCase();
+        this.preloadExtensions = Stream.of(props.getProperty("disk.mmap.preload", DEFAULT_PRELOAD_EXTENSIONS).split(","))
+                .map(String::trim).filter(e -> e.length() > 0).collect(Collectors.toSet());
+        this.useUnmap = Boolean.valueOf(props.getProperty("disk.mmap.unmap", "true"));
+        if(isMapped() && useUnmap && !MMapDirectory.UNMAP_SUPPORTED)
+            log.warn("Unmapping not supported, mapped index files are released by GC: {}", MMapDirectory.UNMAP_NOT_SUPPORTED_REASON);
     }
 
-    private FSDirectory getDirectory(String type, boolean taxonomy) throws IOException {
+    private Directory getDirectory(String type, boolean taxonomy) throws IOException {
         Path path = getIndexPath(type, taxonomy);
+        switch(directoryMode) {
+            case DIRECTORY_MMAP:
+                return openMMapDirectory(path);
+            case DIRECTORY_HYBRID:
+                //存储字段随机读取，通过 NIO 读取避免占用 page cache，其余文件使用 mmap
+                return new FileSwitchDirectory(NIO_EXTENSIONS, new NIOFSDirectory(path), openMMapDirectory(path), true);
+            case DIRECTORY_NIO:
+                return new NIOFSDirectory(path);
+        }
         return isWindows?FSDirectory.open(path):NIOFSDirectory.open(path);
     }
 
+    /**
+     * 打开 mmap 目录，指定扩展名的文件在打开时预加载
+     * @param path
+     * @return
+     * @throws IOException
+     */
+    private Directory openMMapDirectory(Path path) throws IOException {
+        MMapDirectory dir = newMMapDirectory(path, false);
+        if(preloadExtensions.isEmpty())
+            return dir;
+        return new FileSwitchDirectory(preloadExtensions, newMMapDirectory(path, true), dir, true);
+    }
+
+    private MMapDirectory newMMapDirectory(Path path, boolean preload) throws IOException {
+        MMapDirectory dir = new MMapDirectory(path);
+        dir.setPreload(preload);
+        if(MMapDirectory.UNMAP_SUPPORTED)
+            dir.setUseUnmap(useUnmap);
+        return dir;
+    }
+
+    private boolean isMapped() {
+        return DIRECTORY_MMAP.equals(directoryMode) || DIRECTORY_HYBRID.equals(directoryMode);
+    }
+
+    /**
+     * 统计通过 mmap 映射的索引文件大小（按目录中的文件计算），用于估算需要的 page cache
+     * @return
+     */
+    public long getMappedBytes() {
+        if(!isMapped())
+            return 0;
+        long bytes = 0;
+        try (Stream<Path> dirs = Files.list(indexBasePath)) {
+            for(Path dir : dirs.filter(Files::isDirectory).collect(Collectors.toList())) {
+                try (Stream<Path> files = Files.list(dir)) {
+                    for(Path file : files.filter(Files::isRegularFile).collect(Collectors.toList())) {
+                        String name = file.getFileName().toString();
+                        String ext = name.substring(name.lastIndexOf('.') + 1);
+                        if(DIRECTORY_HYBRID.equals(directoryMode) && NIO_EXTENSIONS.contains(ext))
+                            continue;
+                        bytes += Files.size(file);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Failed to calculate mapped bytes of " + indexBasePath, e);
+        }
+        return bytes;
+    }
+
+    /**
+     * 存储状态信息
+     * @return
+     */
+    @Override
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("directory", directoryMode.isEmpty()?DIRECTORY_NIO:directoryMode);
+        stats.put("mapped_bytes", getMappedBytes());
+        stats.put("unmap_supported", MMapDirectory.UNMAP_SUPPORTED);
+        return stats;
+    }
+
     @Override
     public IndexWriter getWriter(String type) throws IOException {
-        return new IndexWriter(getDirectory(type, false), getWriterConfig(type));
+        Directory dir = getDirectory(type, false);
+        if(TYPE_CODE.equals(type))
+            checkSourceOffsets(dir);
+        return new IndexWriter(dir, getWriterConfig(type));
+    }
+
+    /**
+     * 旧的代码索引中源码字段没有保存偏移位置，写入时保持原来的索引选项，重建代码索引后才能使用偏移位置高亮
+     * @param dir
+     * @throws IOException
+     */
+    private void checkSourceOffsets(Directory dir) throws IOException {
+        if(!AnalyzerFactory.isCodeOffsetsEnabled() || !DirectoryReader.indexExists(dir))
+            return;
+        try (DirectoryReader reader = DirectoryReader.open(dir)) {
+            FieldInfo fieldInfo = FieldInfos.getMergedFieldInfos(reader).fieldInfo(FIELD_SOURCE);
+            if(fieldInfo != null && fieldInfo.getIndexOptions().compareTo(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS) < 0) {
+                AnalyzerFactory.disableCodeOffsets();
+                log.warn("Source offsets are not indexed in existing code index, rebuild it to highlight code with offsets.");
+            }
+        }
     }
 
     @Override
@@ -102,6 +224,19 @@ public class DiskIndexStorage implements IndexStorage {
         return new DirectoryTaxonomyReader(getDirectory(type, true));
     }
 
+    /**
+     * 创建同时管理索引和分类索引读取的 SearcherTaxonomyManager
+     *
+     * @param type
+     * @param factory
+     * @return
+     * @throws IOException
+     */
+    @Override
+    public SearcherTaxonomyManager getSearcherManager(String type, SearcherFactory factory) throws IOException {
+        return new SearcherTaxonomyManager(getDirectory(type, false), getDirectory(type, true), factory);
+    }
+
     /**
      * 获取指定类型对象的索引目录
      * @param type
@@ -127,7 +262,7 @@ public class DiskIndexStorage implements IndexStorage {
      * @return
      */
     private IndexWriterConfig getWriterConfig(String type) {
-        Analyzer analyzer = TYPE_CODE.equals(type)?AnalyzerFactory.getCodeAnalyzer():AnalyzerFactory.getInstance(true);
+        Analyzer analyzer = TYPE_CODE.equals(type)?AnalyzerFactory.getCodeIndexAnalyzer():AnalyzerFactory.getInstance(true);
         IndexWriterConfig writerConfig = new IndexWriterConfig(analyzer);
         writerConfig.setUseCompoundFile(Boolean.valueOf(props.getProperty("disk.use_compound_file", "true")));
         writerConfig.setMaxBufferedDocs(NumberUtils.toInt(props.getProperty("disk.max_buffered_docs"), -1));
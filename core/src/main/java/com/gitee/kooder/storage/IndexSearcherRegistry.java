@@ -0,0 +1,235 @@
+/**
+ * Copyright (c) 2021, OSChina (oschina.net@gmail.com).
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitee.kooder.storage;
+
+import com.gitee.kooder.core.Constants;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.lucene.facet.taxonomy.SearcherTaxonomyManager;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 每种类型的索引共享一个 SearcherTaxonomyManager，后台定时刷新以读取最新提交的索引
+ * 搜索时通过 acquire/release 获取已打开的 IndexSearcher，避免每次搜索都重新打开索引
+ * 配置了 search.threads 时，IndexSearcher 使用共享的线程池把一次搜索按索引段分片并发执行
+ */
+public class IndexSearcherRegistry {
+
+    private final static Logger log = LoggerFactory.getLogger(IndexSearcherRegistry.class);
+
+    private IndexStorage storage;
+    private SearcherFactory searcherFactory;
+    private LRUQueryCache queryCache;
+    private QueryCachingPolicy queryCachingPolicy;
+    private SearchExecutor executor;        //分片并发搜索的线程池，为 null 时不并发
+    private int parallelism;                //一次搜索最多分成多少片
+    private long sliceMinDocs;              //每一片至少包含的文档数，避免小索引也拆分
+    private Map<String, SearcherTaxonomyManager> managers = new ConcurrentHashMap<>();
+    private ScheduledExecutorService refresher;
+    private AtomicBoolean closed = new AtomicBoolean(false);
+
+    public IndexSearcherRegistry(IndexStorage storage, Properties props, Properties searchProps) {
+        this.storage = storage;
+        //these cache and policy instances are shared across all searchers and readers
+        int maxEntries = NumberUtils.toInt(searchProps.getProperty("query_cache.max_entries"), 1000);
+        long maxRamBytes = NumberUtils.toLong(searchProps.getProperty("query_cache.max_ram_mb"), 64) * 1024L * 1024L;
+        int minSegmentDocs = NumberUtils.toInt(searchProps.getProperty("query_cache.min_segment_docs"), 10000);
+        this.queryCache = new LRUQueryCache(maxEntries, maxRamBytes, ctx -> ctx.reader().maxDoc() >= minSegmentDocs, 10);
+        this.queryCachingPolicy = new FilterCachingPolicy();
+        this.executor = SearchExecutor.create(searchProps);
+        this.parallelism = Math.max(NumberUtils.toInt(searchProps.getProperty("parallelism"), 4), 1);
+        this.sliceMinDocs = Math.max(NumberUtils.toLong(searchProps.getProperty("slice_min_docs"), 100000), 1);
+        this.searcherFactory = new SearcherFactory() {
+            @Override
+            public IndexSearcher newSearcher(IndexReader reader, IndexReader previousReader) {
+                return IndexSearcherRegistry.this.newSearcher(reader);
+            }
+        };
+        long refreshIntervalMs = Math.max(NumberUtils.toLong(props.getProperty("disk.refresh_interval_ms"), 1000), 100);
+        this.refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "IndexSearcherRefresher");
+            t.setDaemon(true);
+            return t;
+        });
+        this.refresher.scheduleWithFixedDelay(this::refreshAll, refreshIntervalMs, refreshIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 获取某个类型共享的 SearcherTaxonomyManager
+     * 索引尚未创建时抛出 IndexNotFoundException，且不会缓存失败结果
+     * @param type
+     * @return
+     * @throws IOException
+     */
+    public SearcherTaxonomyManager getSearcherManager(String type) throws IOException {
+        if(closed.get())
+            throw new IllegalStateException("IndexSearcherRegistry already closed.");
+        try {
+            return managers.computeIfAbsent(type, t -> {
+                try {
+                    return storage.getSearcherManager(t, searcherFactory);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * 使用共享的查询缓存和线程池为指定的索引创建 IndexSearcher
+     * @param reader
+     * @return
+     */
+    public IndexSearcher newSearcher(IndexReader reader) {
+        IndexSearcher searcher = (executor != null) ? new SlicedIndexSearcher(reader) : new IndexSearcher(reader);
+        searcher.setQueryCache(queryCache);
+        searcher.setQueryCachingPolicy(queryCachingPolicy);
+        return searcher;
+    }
+
+    /**
+     * 刷新所有已打开的索引读取
+     */
+    public void refreshAll() {
+        managers.forEach((type, manager) -> {
+            try {
+                manager.maybeRefresh();
+            } catch (IOException | RuntimeException e) {
+                log.error("Failed to refresh searcher<" + type + ">", e);
+            }
+        });
+    }
+
+    /**
+     * 查询缓存的统计信息
+     * @return
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("hit_count", queryCache.getHitCount());
+        stats.put("miss_count", queryCache.getMissCount());
+        stats.put("cache_count", queryCache.getCacheCount());
+        stats.put("cache_size", queryCache.getCacheSize());
+        stats.put("eviction_count", queryCache.getEvictionCount());
+        stats.put("ram_bytes_used", queryCache.ramBytesUsed());
+        return stats;
+    }
+
+    /**
+     * 搜索线程池的统计信息
+     * @return
+     */
+    public Map<String, Object> executorStats() {
+        return (executor != null) ? executor.stats() : Collections.emptyMap();
+    }
+
+    /**
+     * 关闭所有索引读取
+     */
+    public void close() {
+        if(!closed.compareAndSet(false, true))
+            return;
+        refresher.shutdown();
+        if(executor != null)
+            executor.shutdown();
+        managers.forEach((type, manager) -> {
+            try {
+                manager.close();
+            } catch (IOException | RuntimeException e) {
+                log.error("Failed to close searcher<" + type + ">", e);
+            }
+        });
+        managers.clear();
+    }
+
+    /**
+     * 按 parallelism 和 slice_min_docs 对索引段分片，大的段优先分配到文档数最少的分片
+     * 注意 slices 在父类构造方法中调用，只能使用外部类的配置
+     */
+    private class SlicedIndexSearcher extends IndexSearcher {
+
+        SlicedIndexSearcher(IndexReader reader) {
+            super(reader, executor);
+        }
+
+        @Override
+        protected LeafSlice[] slices(List<LeafReaderContext> leaves) {
+            long totalDocs = 0;
+            for(LeafReaderContext ctx : leaves)
+                totalDocs += ctx.reader().maxDoc();
+            int count = (int)Math.min(Math.min(parallelism, leaves.size()), Math.max(1, totalDocs / sliceMinDocs));
+            if(count <= 1)
+                return new LeafSlice[]{ new LeafSlice(leaves.toArray(new LeafReaderContext[0])) };
+
+            List<LeafReaderContext> sorted = new ArrayList<>(leaves);
+            sorted.sort((a, b) -> Integer.compare(b.reader().maxDoc(), a.reader().maxDoc()));
+            List<List<LeafReaderContext>> groups = new ArrayList<>(count);
+            long[] groupDocs = new long[count];
+            for(int i = 0; i < count; i++)
+                groups.add(new ArrayList<>());
+            for(LeafReaderContext ctx : sorted) {
+                int min = 0;
+                for(int i = 1; i < count; i++) {
+                    if(groupDocs[i] < groupDocs[min])
+                        min = i;
+                }
+                groups.get(min).add(ctx);
+                groupDocs[min] += ctx.reader().maxDoc();
+            }
+            LeafSlice[] slices = new LeafSlice[count];
+            for(int i = 0; i < count; i++)
+                slices[i] = new LeafSlice(groups.get(i).toArray(new LeafReaderContext[0]));
+            return slices;
+        }
+    }
+
+    /**
+     * 企业和仓库过滤条件几乎每次搜索都会用到，第一次出现就缓存成 bitset
+     * 其他查询沿用 Lucene 默认的按使用频率缓存策略
+     */
+    private static class FilterCachingPolicy extends UsageTrackingQueryCachingPolicy {
+
+        @Override
+        public boolean shouldCache(Query query) throws IOException {
+            if(isTenantFilter(query))
+                return true;
+            return super.shouldCache(query);
+        }
+
+        private static boolean isTenantFilter(Query query) {
+            String field = null;
+            if(query instanceof PointRangeQuery)
+                field = ((PointRangeQuery)query).getField();
+            else if(query instanceof PointInSetQuery)
+                field = ((PointInSetQuery)query).getField();
+            return Constants.FIELD_ENTERPRISE_ID.equals(field) || Constants.FIELD_REPO_ID.equals(field);
+        }
+    }
+}
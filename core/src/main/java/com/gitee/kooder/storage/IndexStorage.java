@@ -16,12 +16,16 @@
 package com.gitee.kooder.storage;
 
 import com.gitee.kooder.core.Constants;
+import org.apache.lucene.facet.taxonomy.SearcherTaxonomyManager;
 import org.apache.lucene.facet.taxonomy.TaxonomyReader;
 import org.apache.lucene.facet.taxonomy.TaxonomyWriter;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.search.SearcherFactory;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
 import java.util.Properties;
 
 /**
@@ -81,4 +85,21 @@ public interface IndexStorage {
      */
     TaxonomyReader getTaxonomyReader(String type) throws IOException;
 
+    /**
+     * 创建同时管理索引和分类索引读取的 SearcherTaxonomyManager
+     * @param type
+     * @param factory
+     * @return
+     * @throws IOException
+     */
+    SearcherTaxonomyManager getSearcherManager(String type, SearcherFactory factory) throws IOException;
+
+    /**
+     * 存储状态信息
+     * @return
+     */
+    default Map<String, Object> stats() {
+        return Collections.emptyMap();
+    }
+
 }
@@ -0,0 +1,313 @@
+/**
+ * Copyright (c) 2021, OSChina (oschina.net@gmail.com).
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitee.kooder.storage;
+
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.lucene.facet.taxonomy.TaxonomyWriter;
+import org.apache.lucene.facet.taxonomy.directory.DirectoryTaxonomyWriter;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 每种类型的索引只保留一对长期打开的 IndexWriter/TaxonomyWriter，所有线程共享
+ * 按时间间隔或者累计文档数提交，进程退出时统一提交并关闭
+ */
+public class IndexWriterRegistry {
+
+    private final static Logger log = LoggerFactory.getLogger(IndexWriterRegistry.class);
+
+    private IndexStorage storage;
+    private long commitIntervalMs;  //定时提交的间隔，单位毫秒
+    private long commitMaxDocs;     //累计多少文档变更后立即提交
+    private Map<String, Writers> writers = new ConcurrentHashMap<>();
+    private ScheduledExecutorService committer;
+    private AtomicBoolean closed = new AtomicBoolean(false);
+
+    public IndexWriterRegistry(IndexStorage storage, Properties props) {
+        this.storage = storage;
+        this.commitIntervalMs = Math.max(NumberUtils.toLong(props.getProperty("disk.commit_interval_ms"), 1000), 100);
+        this.commitMaxDocs = NumberUtils.toLong(props.getProperty("disk.commit_max_docs"), 1000);
+        this.committer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "IndexCommitter");
+            t.setDaemon(true);
+            return t;
+        });
+        this.committer.scheduleWithFixedDelay(this::commitAll, commitIntervalMs, commitIntervalMs, TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "IndexWriterRegistryShutdown"));
+    }
+
+    /**
+     * 获取某个类型共享的索引写入器
+     * @param type
+     * @return
+     * @throws IOException
+     */
+    public IndexWriter getIndexWriter(String type) throws IOException {
+        return writers(type).indexWriter;
+    }
+
+    /**
+     * 获取某个类型共享的分类数据写入器
+     * @param type
+     * @return
+     * @throws IOException
+     */
+    public TaxonomyWriter getTaxonomyWriter(String type) throws IOException {
+        return writers(type).taxonomyWriter;
+    }
+
+    /**
+     * 记录文档变更数，达到 commit_max_docs 后触发异步提交
+     * @param type
+     * @param count
+     */
+    public void markChanged(String type, int count) {
+        Writers w = writers.get(type);
+        if(w == null || count <= 0)
+            return;
+        if(w.pendingDocs.addAndGet(count) >= commitMaxDocs && commitMaxDocs > 0 && w.commitScheduled.compareAndSet(false, true)) {
+            committer.execute(() -> {
+                w.commitScheduled.set(false);
+                commit(type, w);
+            });
+        }
+    }
+
+    /**
+     * 在写入器下一次提交成功之后执行 onCommit：写入之后、提交之前进程退出时，任务没有确认，会重新投递
+     * 提交失败时写入器回滚，已经写入的文档全部丢失，执行 onRollback 重新投递任务
+     * @param type
+     * @param writer  写入文档时使用的写入器
+     * @param onCommit
+     * @param onRollback
+     * @throws IOException
+     */
+    public void afterCommit(String type, IndexWriter writer, Runnable onCommit, Runnable onRollback) throws IOException {
+        Writers w = writers(type);
+        if(w.indexWriter != writer || !w.register(new CommitAction(onCommit, onRollback)))
+            onRollback.run();
+    }
+
+    /**
+     * 立即提交某个类型的索引
+     * @param type
+     * @param writer  写入文档时使用的写入器，该写入器已经回滚时抛出异常
+     * @throws IOException
+     */
+    public void commit(String type, IndexWriter writer) throws IOException {
+        Writers w = writers.get(type);
+        if(w == null || w.indexWriter != writer)
+            throw new IOException("Indexes<" + type + "> rolled back after a failed commit, changes lost.");
+        try {
+            w.commit();
+        } catch (IOException | RuntimeException e) {
+            writers.remove(type, w);
+            throw e;
+        }
+    }
+
+    /**
+     * 提交所有有变更的索引
+     */
+    public void commitAll() {
+        writers.forEach(this::commit);
+    }
+
+    private void commit(String type, Writers w) {
+        try {
+            if(w.pendingDocs.get() > 0 || !w.afterCommit.isEmpty() || w.indexWriter.hasUncommittedChanges())
+                w.commit();
+        } catch (IOException | RuntimeException e) {
+            //写入器已经回滚并关闭，下次使用时重新打开
+            writers.remove(type, w);
+            log.error("Failed to commit indexes<" + type + ">", e);
+        }
+    }
+
+    /**
+     * 提交并关闭所有写入器，释放索引锁
+     */
+    public void close() {
+        if(!closed.compareAndSet(false, true))
+            return;
+        committer.shutdown();
+        writers.forEach((type, w) -> {
+            try {
+                w.close();
+                log.info("Indexes<{}> flushed and closed.", type);
+            } catch (IOException | RuntimeException e) {
+                log.error("Failed to close indexes<" + type + ">", e);
+            }
+        });
+        writers.clear();
+    }
+
+    private Writers writers(String type) throws IOException {
+        if(closed.get())
+            throw new IllegalStateException("IndexWriterRegistry already closed.");
+        try {
+            return writers.computeIfAbsent(type, t -> {
+                try {
+                    Writers w = new Writers(storage.getWriter(t), storage.getTaxonomyWriter(t));
+                    w.commit(); //确保索引目录存在提交点，搜索端可以直接打开
+                    return w;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * 提交成功或者回滚之后执行的操作
+     */
+    private static class CommitAction {
+
+        final Runnable onCommit;
+        final Runnable onRollback;
+
+        CommitAction(Runnable onCommit, Runnable onRollback) {
+            this.onCommit = onCommit;
+            this.onRollback = onRollback;
+        }
+
+        static void run(Runnable action) {
+            try {
+                action.run();
+            } catch (RuntimeException e) {
+                log.error("Failed to run action after commit", e);
+            }
+        }
+    }
+
+    /**
+     * 同一类型的索引写入器和分类数据写入器
+     */
+    private static class Writers {
+
+        final IndexWriter indexWriter;
+        final TaxonomyWriter taxonomyWriter;
+        final AtomicLong pendingDocs = new AtomicLong(0);
+        final AtomicBoolean commitScheduled = new AtomicBoolean(false);
+        final Queue<CommitAction> afterCommit = new ConcurrentLinkedQueue<>();   //等待下一次提交的 action
+        boolean rolledBack = false;
+
+        Writers(IndexWriter indexWriter, TaxonomyWriter taxonomyWriter) {
+            this.indexWriter = indexWriter;
+            this.taxonomyWriter = taxonomyWriter;
+        }
+
+        synchronized boolean register(CommitAction action) {
+            if(rolledBack)
+                return false;
+            afterCommit.add(action);
+            return true;
+        }
+
+        /**
+         * 其他线程在提交期间仍然会写入文档：先确定索引本次提交包含的文档，再提交分类数据，最后完成索引提交，
+         * 保证已提交的索引中引用的分类序号都已经持久化
+         * 提交失败时回滚并关闭写入器，否则 prepareCommit 之后的所有提交都会失败
+         * @throws IOException
+         */
+        void commit() throws IOException {
+            List<CommitAction> actions = new ArrayList<>();
+            try {
+                synchronized (this) {
+                    if(rolledBack)
+                        throw new AlreadyClosedException("Indexes rolled back after a failed commit.");
+                    //提交之前登记的 action 对应的写入都包含在本次提交中
+                    drainTo(actions);
+                    long docs = pendingDocs.get();
+                    try {
+                        indexWriter.prepareCommit();
+                        taxonomyWriter.commit();
+                        indexWriter.commit();
+                    } catch (IOException | RuntimeException e) {
+                        rollback();
+                        drainTo(actions);
+                        throw e;
+                    }
+                    pendingDocs.addAndGet(-docs);
+                }
+            } catch (IOException | RuntimeException e) {
+                actions.forEach(a -> CommitAction.run(a.onRollback));
+                throw e;
+            }
+            actions.forEach(a -> CommitAction.run(a.onCommit));
+        }
+
+        private void drainTo(List<CommitAction> actions) {
+            for(CommitAction action = afterCommit.poll(); action != null; action = afterCommit.poll())
+                actions.add(action);
+        }
+
+        /**
+         * 丢弃上次提交之后的所有变更并关闭写入器，释放索引锁
+         */
+        private void rollback() {
+            rolledBack = true;
+            try {
+                indexWriter.rollback();
+            } catch (IOException | RuntimeException e) {
+                log.error("Failed to rollback index writer", e);
+            }
+            try {
+                if(taxonomyWriter instanceof DirectoryTaxonomyWriter)
+                    ((DirectoryTaxonomyWriter)taxonomyWriter).rollback();
+                else
+                    taxonomyWriter.close();
+            } catch (IOException | RuntimeException e) {
+                log.error("Failed to rollback taxonomy writer", e);
+            }
+        }
+
+        synchronized void close() throws IOException {
+            if(rolledBack)
+                return;
+            try {
+                commit();
+            } finally {
+                if(!rolledBack) {
+                    try {
+                        taxonomyWriter.close();
+                    } finally {
+                        indexWriter.close();
+                    }
+                }
+            }
+        }
+    }
+}
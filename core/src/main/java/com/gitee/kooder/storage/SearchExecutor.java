@@ -0,0 +1,103 @@
+/**
+ * Copyright (c) 2021, OSChina (oschina.net@gmail.com).
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitee.kooder.storage;
+
+import org.apache.commons.lang3.math.NumberUtils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 分段并发搜索使用的有界线程池，所有 IndexSearcher 共享
+ * 队列满时按 search.reject_policy 处理：caller_runs 由搜索线程自己执行该分段，abort 直接拒绝本次搜索
+ */
+public class SearchExecutor implements Executor {
+
+    public final static String POLICY_CALLER_RUNS = "caller_runs";
+    public final static String POLICY_ABORT = "abort";
+
+    private ThreadPoolExecutor executor;
+    private int queueCapacity;
+    private boolean callerRuns;
+    private AtomicLong rejectedCount = new AtomicLong(0);
+
+    /**
+     * search.threads 为 0 时不创建线程池，所有搜索在调用线程中执行
+     * @param props
+     * @return
+     */
+    public static SearchExecutor create(Properties props) {
+        int threads = NumberUtils.toInt(props.getProperty("threads"), Runtime.getRuntime().availableProcessors());
+        if(threads <= 0)
+            return null;
+        int queueSize = Math.max(NumberUtils.toInt(props.getProperty("queue_size"), 1000), 1);
+        boolean callerRuns = !POLICY_ABORT.equalsIgnoreCase(props.getProperty("reject_policy", POLICY_CALLER_RUNS).trim());
+        return new SearchExecutor(threads, queueSize, callerRuns);
+    }
+
+    private SearchExecutor(int threads, int queueSize, boolean callerRuns) {
+        this.queueCapacity = queueSize;
+        this.callerRuns = callerRuns;
+        AtomicInteger threadIndex = new AtomicInteger(0);
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueSize), r -> {
+            Thread t = new Thread(r, "IndexSearcher-" + threadIndex.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }, this::reject);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        executor.execute(command);
+    }
+
+    /**
+     * 线程池已满（或已关闭）时的处理
+     * 分段任务由 IndexSearcher 等待完成，caller_runs 模式下即使线程池已关闭也必须执行，否则搜索线程会一直阻塞
+     * @param r
+     * @param pool
+     */
+    private void reject(Runnable r, ThreadPoolExecutor pool) {
+        rejectedCount.incrementAndGet();
+        if(!callerRuns)
+            throw new RejectedExecutionException("Search executor overloaded, queue size: " + pool.getQueue().size());
+        r.run();
+    }
+
+    /**
+     * 线程池运行状态
+     * @return
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("threads", executor.getPoolSize());
+        stats.put("active_threads", executor.getActiveCount());
+        stats.put("queue_depth", executor.getQueue().size());
+        stats.put("queue_capacity", queueCapacity);
+        stats.put("completed_tasks", executor.getCompletedTaskCount());
+        stats.put("rejected_count", rejectedCount.get());
+        stats.put("reject_policy", callerRuns ? POLICY_CALLER_RUNS : POLICY_ABORT);
+        return stats;
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
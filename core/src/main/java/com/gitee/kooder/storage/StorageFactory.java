@@ -17,15 +17,19 @@ package com.gitee.kooder.storage;
 
 import com.gitee.kooder.core.KooderConfig;
 import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.lucene.facet.taxonomy.SearcherTaxonomyManager;
 import org.apache.lucene.facet.taxonomy.TaxonomyReader;
 import org.apache.lucene.facet.taxonomy.TaxonomyWriter;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.search.IndexSearcher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Properties;
 
 /**
@@ -37,6 +41,8 @@ public class StorageFactory {
     private final static Logger log = LoggerFactory.getLogger(StorageFactory.class);
 
     private static IndexStorage storage; //index storage
+    private static IndexWriterRegistry writers; //shared index writers
+    private static IndexSearcherRegistry searchers; //shared index searchers
     private static Path repositoriesPath;
     private static int  repositoriesMaxSizeInGigabyte = 100;//unit:G
 
@@ -46,6 +52,8 @@ public class StorageFactory {
             if("disk".equalsIgnoreCase(props.getProperty("type").trim())) {
                 storage = new DiskIndexStorage(props);
             }
+            writers = new IndexWriterRegistry(storage, props);
+            searchers = new IndexSearcherRegistry(storage, props, KooderConfig.getSearchProperties());
             String repoPath = props.getProperty("repositories.path");
             repositoriesPath = KooderConfig.checkAndCreatePath(repoPath);
         } catch (IOException e) {
@@ -65,13 +73,13 @@ public class StorageFactory {
     }
 
     /**
-     * 获取索引更新的入口
+     * 获取索引更新的入口，返回的是进程内共享的写入器，调用方不能关闭
      * @param type
      * @return
      * @exception
      */
     public static IndexWriter getIndexWriter(String type) throws IOException {
-        return storage.getWriter(type);
+        return writers.getIndexWriter(type);
     }
 
     /**
@@ -85,13 +93,83 @@ public class StorageFactory {
     }
 
     /**
-     * 获取分类数据写入入口
+     * 获取共享的索引搜索入口，通过 acquire/release 使用，调用方不能关闭
+     * @param type
+     * @return
+     * @throws IOException
+     */
+    public static SearcherTaxonomyManager getSearcherManager(String type) throws IOException {
+        return searchers.getSearcherManager(type);
+    }
+
+    /**
+     * 获取分类数据写入入口，返回的是进程内共享的写入器，调用方不能关闭
      * @param type
      * @return
      * @throws IOException
      */
     public static TaxonomyWriter getTaxonomyWriter(String type) throws IOException {
-        return storage.getTaxonomyWriter(type);
+        return writers.getTaxonomyWriter(type);
+    }
+
+    /**
+     * 使用共享的查询缓存和搜索线程池为指定的索引创建 IndexSearcher，用于需要修改 searcher 设置的场景
+     * @param reader
+     * @return
+     */
+    public static IndexSearcher newSearcher(IndexReader reader) {
+        return searchers.newSearcher(reader);
+    }
+
+    /**
+     * 通知索引有文档变更，用于按文档数触发提交
+     * @param type
+     * @param count
+     */
+    public static void markChanged(String type, int count) {
+        writers.markChanged(type, count);
+    }
+
+    /**
+     * 立即提交指定类型的索引，写入器在写入之后已经回滚时抛出异常
+     * @param type
+     * @param writer  写入文档时使用的写入器
+     * @throws IOException
+     */
+    public static void commit(String type, IndexWriter writer) throws IOException {
+        writers.commit(type, writer);
+    }
+
+    /**
+     * 在写入器下一次提交成功之后执行 onCommit，用于确认已经写入索引的任务；提交失败回滚时执行 onRollback
+     * @param type
+     * @param writer  写入文档时使用的写入器
+     * @param onCommit
+     * @param onRollback
+     * @throws IOException
+     */
+    public static void afterCommit(String type, IndexWriter writer, Runnable onCommit, Runnable onRollback) throws IOException {
+        writers.afterCommit(type, writer, onCommit, onRollback);
+    }
+
+    /**
+     * 索引存储的状态信息
+     * @return
+     */
+    public static Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("storage", storage.stats());
+        stats.put("query_cache", searchers.stats());
+        stats.put("search_executor", searchers.executorStats());
+        return stats;
+    }
+
+    /**
+     * 关闭所有共享的搜索入口，提交并关闭所有共享的写入器
+     */
+    public static void close() {
+        searchers.close();
+        writers.close();
     }
 
     /**
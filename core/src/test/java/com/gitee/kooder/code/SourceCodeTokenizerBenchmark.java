@@ -0,0 +1,87 @@
+/**
+ * Copyright (c) 2021, OSChina (oschina.net@gmail.com).
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitee.kooder.code;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 对比 SourceCodeTokenizer 和原来的实现对约 1MB 源码分词的吞吐量
+ * 运行：mvn -pl core test-compile 之后以 test classpath 执行本类的 main 方法
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class SourceCodeTokenizerBenchmark {
+
+    private String source;
+    private Tokenizer legacy;
+    private Tokenizer tokenizer;
+
+    @Setup
+    public void setup() {
+        source = StringUtils.repeat(SourceCodeTokenizerTest.SAMPLE_SOURCE, 1024 * 1024 / SourceCodeTokenizerTest.SAMPLE_SOURCE.length());
+        legacy = new LegacySourceCodeTokenizer();
+        tokenizer = new SourceCodeTokenizer();
+    }
+
+    @Benchmark
+    public long legacyTokenizer() throws IOException {
+        return tokenize(legacy);
+    }
+
+    @Benchmark
+    public long sourceCodeTokenizer() throws IOException {
+        return tokenize(tokenizer);
+    }
+
+    /**
+     * 读取所有词条，返回值交给 JMH 避免分词过程被优化掉
+     */
+    private long tokenize(Tokenizer tokenizer) throws IOException {
+        CharTermAttribute termAtt = tokenizer.addAttribute(CharTermAttribute.class);
+        OffsetAttribute offsetAtt = tokenizer.addAttribute(OffsetAttribute.class);
+        long sum = 0;
+        tokenizer.setReader(new StringReader(source));
+        try {
+            tokenizer.reset();
+            while(tokenizer.incrementToken())
+                sum += termAtt.length() + offsetAtt.endOffset();
+            tokenizer.end();
+        } finally {
+            tokenizer.close();
+        }
+        return sum;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(SourceCodeTokenizerBenchmark.class.getSimpleName()).build()).run();
+    }
+
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright (c) 2021, OSChina (oschina.net@gmail.com).
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitee.kooder.code;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.charfilter.HTMLStripCharFilter;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * SourceCodeTokenizer 与原来的实现（LegacySourceCodeTokenizer）输出的词条和偏移位置必须完全相同
+ */
+public class SourceCodeTokenizerTest {
+
+    final static String SAMPLE_SOURCE =
+            "package com.gitee.kooder.code;\n" +
+            "\n" +
+            "/**\n" +
+            " * 源码分词测试，混合中文注释 and English comments\n" +
+            " */\n" +
+            "public class Sample<T extends Comparable<T>> implements java.io.Serializable {\n" +
+            "\tprivate final static String SEPARATORS = \" ~!@#$%^&*()-_+[]{}?/\\\\<>.:;,'\\\"\";\n" +
+            "\tprivate int[] values = new int[]{1, 2, 3};\r\n" +
+            "\tpublic T max(List<T> items) { //返回最大值\n" +
+            "\t\treturn items.stream().max(Comparator.naturalOrder()).orElse(null);\n" +
+            "\t}\n" +
+            "}\n";
+
+    private final static String RANDOM_CHARS = "abcXYZ019$_ .(){}\"'\\\r\n\t\f 中文字𝄞";
+
+    @Test
+    public void testSampleSource() throws IOException {
+        assertSameTokens(SAMPLE_SOURCE);
+    }
+
+    @Test
+    public void testEdgeCases() throws IOException {
+        for(String text : Arrays.asList("", " ", "\r\n\t", "a", "hello你好", "你好hello", "a.b", "..", "a  b", "_a_", "a b\fc", "𝄞x", "end."))
+            assertSameTokens(text);
+    }
+
+    /**
+     * 新的实现按 4096 个字符分块读取输入，词条跨越块边界时结果不能改变
+     */
+    @Test
+    public void testBufferBoundary() throws IOException {
+        for(int length = 4090; length <= 4100; length++) {
+            assertSameTokens(StringUtils.repeat('x', length) + ".y z");
+            assertSameTokens(StringUtils.repeat("ab ", length / 3) + "中cd");
+        }
+        assertSameTokens(StringUtils.repeat(SAMPLE_SOURCE, 100));
+    }
+
+    /**
+     * 超过 Lucene 长度限制的词条输出为空词
+     */
+    @Test
+    public void testOverlongTerm() throws IOException {
+        assertSameTokens(StringUtils.repeat('a', 32766) + " b");
+        assertSameTokens("x " + StringUtils.repeat('a', 32767) + ".b");
+        assertSameTokens(StringUtils.repeat('a', 40000));
+    }
+
+    @Test
+    public void testRandomText() throws IOException {
+        Random random = new Random(20210501L);
+        for(int i = 0; i < 500; i++) {
+            StringBuilder text = new StringBuilder();
+            int length = random.nextInt(10000);
+            for(int j = 0; j < length; j++)
+                text.append(RANDOM_CHARS.charAt(random.nextInt(RANDOM_CHARS.length())));
+            assertSameTokens(text.toString());
+        }
+    }
+
+    /**
+     * 偏移位置需要经过 CharFilter 修正
+     */
+    @Test
+    public void testCorrectOffset() throws IOException {
+        String html = "<p>int a = b;</p><br/>中文 &lt;T&gt; x.y";
+        assertEquals(
+                tokens(new LegacySourceCodeTokenizer(), new HTMLStripCharFilter(new StringReader(html))),
+                tokens(new SourceCodeTokenizer(), new HTMLStripCharFilter(new StringReader(html))));
+    }
+
+    /**
+     * 同一个分词器重复使用时不能残留上一次输入的状态
+     */
+    @Test
+    public void testReuse() throws IOException {
+        Tokenizer legacy = new LegacySourceCodeTokenizer();
+        Tokenizer tokenizer = new SourceCodeTokenizer();
+        for(String text : Arrays.asList("abc.", "def", StringUtils.repeat("xy.", 2000), "z"))
+            assertEquals(text, tokens(legacy, new StringReader(text)), tokens(tokenizer, new StringReader(text)));
+    }
+
+    private static void assertSameTokens(String text) throws IOException {
+        assertEquals(StringUtils.abbreviate(text, 100),
+                tokens(new LegacySourceCodeTokenizer(), new StringReader(text)),
+                tokens(new SourceCodeTokenizer(), new StringReader(text)));
+    }
+
+    private static List<String> tokens(Tokenizer tokenizer, Reader reader) throws IOException {
+        CharTermAttribute termAtt = tokenizer.addAttribute(CharTermAttribute.class);
+        OffsetAttribute offsetAtt = tokenizer.addAttribute(OffsetAttribute.class);
+        List<String> tokens = new ArrayList<>();
+        tokenizer.setReader(reader);
+        try {
+            tokenizer.reset();
+            while(tokenizer.incrementToken())
+                tokens.add(termAtt.toString() + "[" + offsetAtt.startOffset() + "," + offsetAtt.endOffset() + ")");
+            tokenizer.end();
+        } finally {
+            tokenizer.close();
+        }
+        return tokens;
+    }
+
+}
@@ -20,6 +20,8 @@ import com.gitee.kooder.core.SearchHelper;
 import com.gitee.kooder.models.QueryResult;
 import com.gitee.kooder.models.Searchable;
 import com.gitee.kooder.models.SourceFile;
+import com.gitee.kooder.query.CodeQuery;
+import com.gitee.kooder.query.CodeRegexQuery;
 import com.gitee.kooder.query.QueryFactory;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.vertx.core.http.HttpServerRequest;
@@ -29,6 +31,7 @@ import org.apache.commons.lang3.math.NumberUtils;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 /**
@@ -104,6 +107,7 @@ public class SearchAction implements SearchActionBase {
                 .addFacets(Constants.FIELD_LANGUAGE, lang)
                 .setSort(sort)
                 .setPage(page)
+                .setCursor(param(context.request(), "cursor"))
                 .setPageSize(PAGE_SIZE)
                 .execute();
 
@@ -135,6 +139,7 @@ public class SearchAction implements SearchActionBase {
                 .setSearchKey(q)
                 .setSort(sort)
                 .setPage(page)
+                .setCursor(param(context.request(), "cursor"))
                 .setPageSize(PAGE_SIZE)
                 .execute();
         this.json(context.response(), result.json());
@@ -170,7 +175,11 @@ public class SearchAction implements SearchActionBase {
             repos.addAll(Arrays.asList(body.split(",")));
         List<Long> iRepos = repos.stream().map(r -> NumberUtils.toLong(r, 0)).filter(r -> (r > 0)).collect(Collectors.toList());
 
+        boolean regex = "true".equalsIgnoreCase(param(context.request(), "regex"));
+
         QueryResult result = QueryFactory.CODE()
+                .setRegex(regex)
+                .setHighlightLines(MAX_LINES)
                 .setEnterpriseId(eid)
                 .addRepositories(iRepos)
                 .setSearchKey(q)
@@ -179,12 +188,18 @@ public class SearchAction implements SearchActionBase {
                 .addFacets(Constants.FIELD_CODE_OWNER, param(context.request(), Constants.FIELD_CODE_OWNER))
                 .setSort(sort)
                 .setPage(page)
+                .setCursor(param(context.request(), "cursor"))
                 .setPageSize(PAGE_SIZE)
                 .execute();
 
-        for (Searchable obj : result.getObjects()) {
-            SourceFile file = (SourceFile) obj;
-            file.setResult(SearchHelper.hl_lines(file.getContents(), q, MAX_LINES));
+        //普通搜索在查询时已经标识出匹配的代码行
+        if(regex) {
+            Pattern pattern = CodeRegexQuery.compile(q);
+            CodeRegexQuery.Budget budget = CodeQuery.newRegexBudget();
+            for (Searchable obj : result.getObjects()) {
+                SourceFile file = (SourceFile) obj;
+                file.setResult(SearchHelper.regex_lines(file.getContents(), pattern, MAX_LINES, budget));
+            }
         }
 
         this.json(context.response(), result.json());
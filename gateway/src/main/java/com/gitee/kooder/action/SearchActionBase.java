@@ -52,6 +52,7 @@ interface SearchActionBase extends Action {
         switch (type) {
             case Constants.TYPE_REPOSITORY:
                 result = QueryFactory.REPO()
+                        .setHighlightFields(Constants.FIELD_NAME, Constants.FIELD_DESC)
                         .setEnterpriseId(param(context.request(), Constants.FIELD_ENTERPRISE_ID, 0))
                         .setSearchKey(q)
                         .addFacets(Constants.FIELD_LANGUAGE, lang)
@@ -63,6 +64,7 @@ interface SearchActionBase extends Action {
 
             case Constants.TYPE_ISSUE:
                 result = QueryFactory.ISSUE()
+                        .setHighlightFields(Constants.FIELD_TITLE, Constants.FIELD_DESC)
                         .setEnterpriseId(param(context.request(), Constants.FIELD_ENTERPRISE_ID, 0))
                         .setSearchKey(q)
                         .setSort(sort)
@@ -73,6 +75,7 @@ interface SearchActionBase extends Action {
 
             case Constants.TYPE_CODE:
                 result = QueryFactory.CODE()
+                        .setHighlightLines(10)
                         .setSearchKey(q)
                         .addFacets(Constants.FIELD_LANGUAGE, lang)
                         .addFacets(Constants.FIELD_REPO_NAME, param(context.request(), Constants.FIELD_REPO_NAME))
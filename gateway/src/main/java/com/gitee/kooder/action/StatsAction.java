@@ -0,0 +1,46 @@
+/**
+ * Copyright (c) 2021, OSChina (oschina.net@gmail.com).
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitee.kooder.action;
+
+import com.gitee.kooder.query.QueryResultCache;
+import com.gitee.kooder.queue.CoalescingQueueProvider;
+import com.gitee.kooder.queue.QueueFactory;
+import com.gitee.kooder.server.Action;
+import com.gitee.kooder.storage.StorageFactory;
+import com.gitee.kooder.utils.JsonUtils;
+import io.vertx.ext.web.RoutingContext;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Runtime statistics api
+ */
+public class StatsAction implements Action {
+
+    /**
+     * API: storage, search and queue statistics
+     * @param context
+     */
+    public void index(RoutingContext context) {
+        Map<String, Object> stats = new LinkedHashMap<>(StorageFactory.stats());
+        stats.put("result_cache", QueryResultCache.INSTANCE.stats());
+        if(QueueFactory.getProvider() instanceof CoalescingQueueProvider)
+            stats.put("queue", ((CoalescingQueueProvider)QueueFactory.getProvider()).stats());
+        this.json(context.response(), JsonUtils.toJson(stats));
+    }
+
+}
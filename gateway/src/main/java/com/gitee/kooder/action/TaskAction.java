@@ -86,6 +86,8 @@ public class TaskAction {
                 return QueueTask.ACTION_UPDATE;
             case "DELETE":
                 return QueueTask.ACTION_DELETE;
+            case "PATCH":
+                return QueueTask.ACTION_PATCH;
         }
         return QueueTask.ACTION_ADD;
     }
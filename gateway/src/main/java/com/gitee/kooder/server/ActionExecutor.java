@@ -15,9 +15,11 @@
  */
 package com.gitee.kooder.server;
 
+import com.gitee.kooder.query.IllegalQueryException;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.vertx.core.http.HttpServerResponse;
 import io.vertx.ext.web.RoutingContext;
+import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -26,6 +28,8 @@ import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.regex.PatternSyntaxException;
 import java.util.stream.Stream;
 
 /**
@@ -108,6 +112,15 @@ public class ActionExecutor {
                     throw new IllegalArgumentException(actionMethod.getName());
             }
         } catch (InvocationTargetException e) {
+            if(e.getCause() instanceof RejectedExecutionException) { //搜索线程池已满
+                log.warn("Request rejected: " + context.request().uri() + ", " + e.getCause().getMessage());
+                sendError(response, HttpResponseStatus.SERVICE_UNAVAILABLE.code());
+                return;
+            }
+            if(isIllegalRequest(e.getCause())) { //请求参数不合法，例如错误的正则表达式或分页游标
+                sendError(response, HttpResponseStatus.NOT_ACCEPTABLE.code(), StringUtils.normalizeSpace(e.getCause().getMessage()));
+                return;
+            }
             log.error("Failed to invoke " + context.request().uri(), e.getCause());
             sendError(response, HttpResponseStatus.INTERNAL_SERVER_ERROR.code(), e.getCause().getMessage());
         } catch (IllegalArgumentException e) {
@@ -123,6 +136,15 @@ public class ActionExecutor {
 
     }
 
+    /**
+     * 只有搜索参数校验产生的异常才当作客户端错误，action 中的其他异常（包括包装了 IOException 的 QueryException）都是服务端错误，需要记录日志
+     * @param t
+     * @return
+     */
+    private static boolean isIllegalRequest(Throwable t) {
+        return t instanceof IllegalQueryException || t instanceof PatternSyntaxException;
+    }
+
     /**
      * 获取action的方法实例
      * @param className
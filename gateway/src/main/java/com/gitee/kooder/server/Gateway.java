@@ -45,6 +45,8 @@ public class Gateway extends GatewayBase {
         put("file", new FileIndexThread());
     }};
 
+    private RequestDispatcher dispatcher;
+
     private Gateway() {
         super();
     }
@@ -55,8 +57,9 @@ public class Gateway extends GatewayBase {
         router.route().handler(BodyHandler.create().setHandleFileUploads(false));
         //static files
         router.routeWithRegex(pattern_static_file).blockingHandler(new AutoContentTypeStaticHandler(), false);
-        //action handler
-        router.route().blockingHandler(context -> {
+        //action handler, webhook and task requests are executed apart from search requests
+        this.dispatcher = new RequestDispatcher(vertx, KooderConfig.getHttpProperties());
+        router.route().handler(ctx -> dispatcher.dispatch(ctx, context -> {
             long ct = System.currentTimeMillis();
             try {
                 ActionExecutor.execute(context);
@@ -68,12 +71,13 @@ public class Gateway extends GatewayBase {
                     res.close();
             }
             writeAccessLog(context, System.currentTimeMillis() - ct);
-        }, false);
+        }));
 
         InetSocketAddress address = (bind==null)?new InetSocketAddress(this.port):new InetSocketAddress(this.bind, this.port);
 
         this.server.requestHandler(router).listen(SocketAddress.inetSocketAddress(address)).onSuccess(server -> {
             Runtime.getRuntime().addShutdownHook(new Thread(() ->{
+                dispatcher.close();
                 super.stop();
                 for(Thread task : startupTasks.values()){
                     task.interrupt();
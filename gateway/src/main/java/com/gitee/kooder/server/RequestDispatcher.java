@@ -0,0 +1,155 @@
+/**
+ * Copyright (c) 2021, OSChina (oschina.net@gmail.com).
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitee.kooder.server;
+
+import io.vertx.core.Handler;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
+import io.vertx.ext.web.RoutingContext;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Collectors;
+
+/**
+ * 按 action 类型把请求分配到不同的线程中执行，webhook 和任务推送的突发流量不会占满搜索请求使用的线程：
+ * pool 模式（默认）：写入类请求（webhook、任务接口）使用独立的有界线程池，其他请求使用 Vert.x 的 worker 线程池
+ * virtual 模式：每个请求在一个虚拟线程中执行（需要 JDK 21+，不支持时使用 pool 模式），写入类请求的并发数仍然受 ingest 线程数限制
+ */
+class RequestDispatcher {
+
+    private final static Logger log = LoggerFactory.getLogger("[gateway]");
+
+    private final static String MODE_VIRTUAL = "virtual";
+
+    private final Vertx vertx;
+    private final Set<String> ingestActions;        //写入类请求的 action 名（URL 的第一段）
+    private final WorkerExecutor ingestExecutor;    //pool 模式下写入类请求的线程池
+    private final ExecutorService virtualExecutor;  //virtual 模式下的虚拟线程
+    private final Semaphore ingestPermits;          //virtual 模式下写入类请求的并发数
+
+    /**
+     * @param vertx
+     * @param props  http.* 配置
+     */
+    RequestDispatcher(Vertx vertx, Properties props) {
+        this.vertx = vertx;
+        this.ingestActions = Arrays.stream(props.getProperty("ingest.actions", "task,gitee,gitlab,gitea").split(","))
+                .map(StringUtils::trim)
+                .filter(StringUtils::isNotBlank)
+                .map(String::toLowerCase)
+                .collect(Collectors.toSet());
+        int ingestPoolSize = Math.max(NumberUtils.toInt(props.getProperty("ingest.pool.size"), 2), 1);
+        ExecutorService executor = null;
+        if(MODE_VIRTUAL.equalsIgnoreCase(StringUtils.trim(props.getProperty("executor")))) {
+            executor = newVirtualThreadExecutor();
+            if(executor == null)
+                log.warn("Virtual threads are not supported by JVM {}, fallback to pool executor.", System.getProperty("java.version"));
+        }
+        this.virtualExecutor = executor;
+        if(virtualExecutor != null) {
+            this.ingestExecutor = null;
+            this.ingestPermits = new Semaphore(ingestPoolSize, true);
+        }
+        else {
+            this.ingestExecutor = vertx.createSharedWorkerExecutor("kooder-ingest", ingestPoolSize);
+            this.ingestPermits = null;
+        }
+        log.info("Requests of [{}] dispatched to {} executor with {} threads.",
+                String.join(",", ingestActions), (virtualExecutor != null) ? "virtual" : "pool", ingestPoolSize);
+    }
+
+    /**
+     * 通过反射创建虚拟线程池，编译目标仍然是 Java 8
+     * @return 不支持虚拟线程时返回 null
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 在请求对应的线程中执行 handler
+     * @param context
+     * @param handler
+     */
+    void dispatch(RoutingContext context, Handler<RoutingContext> handler) {
+        boolean ingest = isIngestRequest(context);
+        if(virtualExecutor != null) {
+            virtualExecutor.execute(() -> {
+                if(!ingest) {
+                    handle(context, handler);
+                    return;
+                }
+                try {
+                    ingestPermits.acquire();
+                } catch (InterruptedException e) {
+                    context.fail(503);
+                    return;
+                }
+                try {
+                    handle(context, handler);
+                } finally {
+                    ingestPermits.release();
+                }
+            });
+            return;
+        }
+        Handler<Promise<Void>> blockingCode = promise -> {
+            handle(context, handler);
+            promise.complete();
+        };
+        if(ingest)
+            ingestExecutor.<Void>executeBlocking(blockingCode, false, ar -> {});
+        else
+            vertx.<Void>executeBlocking(blockingCode, false, ar -> {});
+    }
+
+    private static void handle(RoutingContext context, Handler<RoutingContext> handler) {
+        try {
+            handler.handle(context);
+        } catch (Throwable t) {
+            log.error("Failed to handle " + context.request().uri(), t);
+            if(!context.response().ended())
+                context.fail(500, t);
+        }
+    }
+
+    private boolean isIngestRequest(RoutingContext context) {
+        String path = StringUtils.stripStart(context.request().path(), "/");
+        String action = StringUtils.substringBefore(path, "/").toLowerCase();
+        return ingestActions.contains(action);
+    }
+
+    void close() {
+        if(ingestExecutor != null)
+            ingestExecutor.close();
+        if(virtualExecutor != null)
+            virtualExecutor.shutdown();
+    }
+}
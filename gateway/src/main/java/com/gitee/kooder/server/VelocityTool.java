@@ -16,6 +16,8 @@
 package com.gitee.kooder.server;
 
 import com.gitee.kooder.models.CodeLine;
+import com.gitee.kooder.models.Searchable;
+import com.gitee.kooder.models.SourceFile;
 import com.gitee.kooder.core.KooderConfig;
 import com.gitee.kooder.core.SearchHelper;
 import io.vertx.core.http.HttpServerRequest;
@@ -189,6 +191,33 @@ public class VelocityTool {
         return new StringBuffer(SearchHelper.highlight(text, key, maxLen));
     }
 
+    /**
+     * 对象字段的高亮结果，搜索时已经高亮的字段直接使用，否则对文本执行高亮处理
+     * @param obj
+     * @param field
+     * @param text  字段内容
+     * @param key
+     * @return
+     */
+    public static StringBuffer hl_field(Searchable obj, String field, String text, String key) {
+        return hl_field(obj, field, text, key, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 对象字段的高亮结果，搜索时已经高亮的字段直接使用，否则对文本执行高亮处理
+     * @param obj
+     * @param field
+     * @param text  字段内容
+     * @param key
+     * @param maxLen
+     * @return
+     */
+    public static StringBuffer hl_field(Searchable obj, String field, String text, String key, int maxLen) {
+        if(obj.getHighlights() != null && obj.getHighlights().containsKey(field))
+            return new StringBuffer(obj.getHighlights().get(field));
+        return (text != null) ? highlight(text, key, maxLen) : null;
+    }
+
     /**
      * 源码高亮，由于使用不同的 Analyzer ，所以需要不同的方法
      * @param code
@@ -210,6 +239,19 @@ public class VelocityTool {
         return SearchHelper.hl_lines(code, key, maxLines);
     }
 
+    /**
+     * 源码文件中匹配的代码行，搜索时已经标识出来的直接使用
+     * @param file
+     * @param key
+     * @param maxLines
+     * @return
+     */
+    public static List<CodeLine> code_lines(SourceFile file, String key, int maxLines) {
+        if(file.getResult() != null)
+            return file.getResult();
+        return SearchHelper.hl_lines(file.getContents(), key, maxLines);
+    }
+
     /**
      * HTML escape
      * @param content
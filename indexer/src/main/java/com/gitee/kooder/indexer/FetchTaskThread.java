@@ -18,13 +18,14 @@ package com.gitee.kooder.indexer;
 import com.gitee.kooder.code.*;
 import com.gitee.kooder.core.Constants;
 import com.gitee.kooder.core.KooderConfig;
+import com.gitee.kooder.index.IndexManager;
 import com.gitee.kooder.models.CodeRepository;
 import com.gitee.kooder.models.Searchable;
+import com.gitee.kooder.queue.Queue;
 import com.gitee.kooder.queue.QueueFactory;
 import com.gitee.kooder.queue.QueueProvider;
 import com.gitee.kooder.queue.QueueTask;
 import com.gitee.kooder.storage.StorageFactory;
-import com.gitee.kooder.utils.BatchTaskRunner;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.math.NumberUtils;
 import org.apache.lucene.document.LongPoint;
@@ -35,22 +36,38 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.List;
-import java.util.Properties;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 /**
  * 用于从队列中获取待办任务的线程
+ * 每种任务类型使用单独的线程池处理，慢的代码仓库不会阻塞仓库和 Issue 等元数据的索引：
+ * 1. 按优先级依次从各类型的队列中租借任务（元数据优先于代码），每种类型只租借线程池能够处理的数量
+ * 2. 同一个对象（代码仓库、仓库、Issue）的任务不会同时处理，后到的任务等待前面的任务完成
+ * 3. 所有仓库同时 clone/fetch 的数量由 indexer.max_fetches 限制，见 GitRepositoryProvider
  * @author Winter Lau<javayou@gmail.com>
  */
 public class FetchTaskThread extends Thread {
 
     private final static Logger log = LoggerFactory.getLogger("[indexer]");
 
+    //任务类型的优先级，数值小的先处理
+    private final static Map<String, Integer> PRIORITIES = new HashMap<String, Integer>(){{
+        put(Constants.TYPE_REPOSITORY, 0);
+        put(Constants.TYPE_ISSUE, 1);
+        put(Constants.TYPE_CODE, 2);
+    }};
+
     private QueueProvider provider;         //队列
-    private int no_task_interval    = 1000; //从队列中获取不到任务时的休眠时间
+    private int no_task_interval    = 1000; //从队列中获取不到任务时的最长等待时间
     private int batch_fetch_count   = 10;   //一次从队列中获取任务的数量
     private int tasks_per_thread    = 1;    //每个线程处理的任务数
+    private int task_threads        = 2;    //每种元数据任务的处理线程数
+    private int code_task_threads   = 2;    //同时索引的代码仓库数
 
     public FetchTaskThread() {
         this.provider = QueueFactory.getProvider();
@@ -58,41 +75,176 @@ public class FetchTaskThread extends Thread {
         this.no_task_interval   = NumberUtils.toInt(props.getProperty("no_task_interval"),  1000);
         this.batch_fetch_count  = NumberUtils.toInt(props.getProperty("batch_fetch_count"), 10);
         this.tasks_per_thread   = NumberUtils.toInt(props.getProperty("tasks_per_thread"),  1);
+        this.task_threads       = Math.max(NumberUtils.toInt(props.getProperty("task_threads"), 2), 1);
+        this.code_task_threads  = Math.max(NumberUtils.toInt(props.getProperty("code_task_threads"), 2), 1);
     }
 
     @Override
     public void run() {
-        while(!this.isInterrupted()) {
-            final AtomicInteger taskCount = new AtomicInteger(0);
-            BatchTaskRunner.execute(provider.getAllTypes(), 1, types -> {
-                for(String type : types) {
-                    List<QueueTask> tasks = provider.queue(type).pop(batch_fetch_count);
-                    if(tasks != null && tasks.size() > 0) {
-                        try (
-                            IndexWriter writer = StorageFactory.getIndexWriter(type);
-                            TaxonomyWriter taxonomyWriter = StorageFactory.getTaxonomyWriter(type))
-                        {
-                            //如果 tasks_per_thread < 0 ，则单线程处理
-                            int threshold = (tasks_per_thread>0)?tasks_per_thread:tasks.size();
-                            long startTime = System.currentTimeMillis();
-                            BatchTaskRunner.execute(tasks, threshold, list -> handleTasks(list, writer, taxonomyWriter));
-                            log.info("{} tasks<{}> finished in {} ms", tasks.size(), type, System.currentTimeMillis() - startTime);
-                            taskCount.addAndGet(tasks.size());
-                        } catch ( IOException e ) {
-                            log.error("Failed to write tasks<"+type+"> to indexes.", e);
-                        }
+        List<TaskWorker> workers = provider.getAllTypes().stream()
+                .sorted(Comparator.comparing(type -> PRIORITIES.getOrDefault(type, Integer.MAX_VALUE)))
+                .map(TaskWorker::new)
+                .collect(Collectors.toList());
+        try {
+            while(!this.isInterrupted()) {
+                int taskCount = 0;
+                for(TaskWorker worker : workers) {
+                    int capacity = Math.min(worker.capacity(), batch_fetch_count);
+                    if(capacity <= 0)
+                        continue;
+                    try {
+                        taskCount += worker.dispatch(worker.queue.lease(capacity));
+                    } catch (Exception e) {
+                        log.error("Failed to fetch tasks<" + worker.type + "> from queue.", e);
+                    }
+                }
+                //没有新任务或者所有线程都在忙
+                if (taskCount == 0) {
+                    try {
+                        provider.await(no_task_interval);
+                    } catch (InterruptedException e) {
+                        break;
                     }
                 }
+            }
+        } finally {
+            //没有处理完的任务没有确认，会重新投递
+            workers.forEach(worker -> worker.executor.shutdownNow());
+        }
+    }
+
+    /**
+     * 一种任务类型的处理线程池
+     */
+    private class TaskWorker {
+
+        final String type;
+        final Queue queue;
+        final boolean isCode;
+        final int limit;            //同时处理（包括等待处理）的任务数上限
+        final ExecutorService executor;
+        final AtomicInteger outstanding = new AtomicInteger(0);
+
+        //同一个对象（仓库、Issue）的任务按先后顺序串行处理
+        private final Set<Long> runningObjects = new HashSet<>();
+        private final List<List<QueueTask>> waitingBatches = new LinkedList<>();
+
+        TaskWorker(String type) {
+            this.type = type;
+            this.queue = provider.queue(type);
+            this.isCode = Constants.TYPE_CODE.equals(type);
+            int threads = isCode ? code_task_threads : task_threads;
+            this.limit = isCode ? threads : threads * Math.max(tasks_per_thread, batch_fetch_count);
+            AtomicInteger threadIndex = new AtomicInteger(0);
+            this.executor = Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(r, "indexer-" + type + "-" + threadIndex.incrementAndGet());
+                t.setDaemon(true);
+                if(isCode)
+                    t.setPriority(Thread.NORM_PRIORITY - 1);
+                return t;
             });
+        }
 
-            if (taskCount.get() == 0){
-                try {
-                    Thread.sleep(no_task_interval);
-                } catch (InterruptedException e) {
-                    break;
+        int capacity() {
+            return limit - outstanding.get();
+        }
+
+        /**
+         * 分派租借到的任务，代码任务逐个处理，其他任务按 tasks_per_thread 分批处理
+         * @param tasks
+         * @return 返回任务数
+         */
+        int dispatch(List<QueueTask> tasks) {
+            if(tasks == null || tasks.isEmpty())
+                return 0;
+            outstanding.addAndGet(tasks.size());
+            //如果 tasks_per_thread < 0 ，则整批任务在一个线程中处理
+            int threshold = isCode ? 1 : (tasks_per_thread > 0) ? tasks_per_thread : tasks.size();
+            for(int i = 0; i < tasks.size(); i += threshold)
+                schedule(new ArrayList<>(tasks.subList(i, Math.min(i + threshold, tasks.size()))));
+            return tasks.size();
+        }
+
+        /**
+         * 批次中的对象有任务正在处理或者等待处理时先等待，保证同一个对象的任务按顺序执行
+         * @param batch
+         */
+        private synchronized void schedule(List<QueueTask> batch) {
+            Set<Long> blocked = new HashSet<>(runningObjects);
+            waitingBatches.forEach(waiting -> blocked.addAll(objectIds(waiting)));
+            if(isRunnable(batch, blocked))
+                start(batch);
+            else
+                waitingBatches.add(batch);
+        }
+
+        private boolean isRunnable(List<QueueTask> batch, Set<Long> blocked) {
+            return objectIds(batch).stream().noneMatch(blocked::contains);
+        }
+
+        private Set<Long> objectIds(List<QueueTask> batch) {
+            return batch.stream().flatMap(task -> task.getObjectIds().stream()).collect(Collectors.toSet());
+        }
+
+        private void start(List<QueueTask> batch) {
+            runningObjects.addAll(objectIds(batch));
+            submit(batch);
+        }
+
+        /**
+         * 批次完成后，按顺序调度等待这些对象的批次
+         * @param batch
+         */
+        private synchronized void finish(List<QueueTask> batch) {
+            runningObjects.removeAll(objectIds(batch));
+            Set<Long> blocked = new HashSet<>(runningObjects);
+            Iterator<List<QueueTask>> it = waitingBatches.iterator();
+            while(it.hasNext()) {
+                List<QueueTask> waiting = it.next();
+                if(isRunnable(waiting, blocked)) {
+                    it.remove();
+                    start(waiting);
                 }
+                blocked.addAll(objectIds(waiting));
             }
+        }
 
+        private void submit(List<QueueTask> tasks) {
+            try {
+                executor.execute(() -> {
+                    try {
+                        handle(tasks);
+                    } finally {
+                        outstanding.addAndGet(-tasks.size());
+                        finish(tasks);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                //线程池已经关闭，任务没有确认，会重新投递
+                outstanding.addAndGet(-tasks.size());
+            }
+        }
+
+        /**
+         * 处理任务，成功的任务从队列中删除，失败的任务重新投递
+         * @param tasks
+         */
+        private void handle(List<QueueTask> tasks) {
+            try {
+                IndexWriter writer = StorageFactory.getIndexWriter(type);
+                TaxonomyWriter taxonomyWriter = StorageFactory.getTaxonomyWriter(type);
+                long startTime = System.currentTimeMillis();
+                List<QueueTask> failedTasks = handleTasks(tasks, writer, taxonomyWriter);
+                //写入的文档提交之后才确认任务，提交之前进程退出时任务会重新投递
+                List<QueueTask> doneTasks = tasks.stream().filter(t -> !failedTasks.contains(t)).collect(Collectors.toList());
+                if(!doneTasks.isEmpty())
+                    StorageFactory.afterCommit(type, writer, () -> queue.ack(doneTasks), () -> queue.nack(doneTasks));
+                queue.nack(failedTasks);
+                log.info("{} tasks<{}> finished in {} ms", tasks.size(), type, System.currentTimeMillis() - startTime);
+            } catch ( Exception e ) {
+                log.error("Failed to write tasks<"+type+"> to indexes.", e);
+                queue.nack(tasks);
+            }
         }
     }
 
@@ -101,19 +253,30 @@ public class FetchTaskThread extends Thread {
      * @param tasks
      * @param writer
      * @param taxonomyWriter
+     * @return 返回处理失败的任务
      */
-    private void handleTasks(List<QueueTask> tasks, IndexWriter writer, TaxonomyWriter taxonomyWriter) {
-        tasks.forEach( task -> {
-            try {
-                //代码类型的任务需要单独处理，而且需要区分对待公开和私有仓库
-                if(task.isCodeTask())
+    private List<QueueTask> handleTasks(List<QueueTask> tasks, IndexWriter writer, TaxonomyWriter taxonomyWriter) {
+        List<QueueTask> failedTasks = new ArrayList<>();
+        //代码类型的任务需要单独处理，而且需要区分对待公开和私有仓库
+        if(tasks.size() > 0 && tasks.get(0).isCodeTask()) {
+            tasks.forEach(task -> {
+                try {
                     handleCodeTask(task, writer, taxonomyWriter);
-                else
-                    task.write(writer, taxonomyWriter);
-            } catch (Exception e) {
-                log.error("Failed writing task to index repository", e);
-            }
-        });
+                } catch (Exception e) {
+                    log.error("Failed writing task to index repository", e);
+                    failedTasks.add(task);
+                }
+            });
+            return failedTasks;
+        }
+        //其他类型任务中的文档合并成批量写入
+        try {
+            IndexManager.writeBatch(tasks, writer, taxonomyWriter);
+        } catch (Exception e) {
+            log.error("Failed writing tasks to index repository", e);
+            failedTasks.addAll(tasks);
+        }
+        return failedTasks;
     }
 
     /**
@@ -122,6 +285,7 @@ public class FetchTaskThread extends Thread {
      * @param task
      * @param writer
      * @param taxonomyWriter
+     * @exception IllegalStateException 仓库更新失败，需要重试
      */
     private void handleCodeTask(QueueTask task, IndexWriter writer, TaxonomyWriter taxonomyWriter) {
         switch(task.getAction()){
@@ -145,7 +309,14 @@ public class FetchTaskThread extends Thread {
                     repo = newRepo;
                 }
                 //pull repository from remote and build index for it
-                RepositoryFactory.getProvider(repo.getScm()).pull(repo, fileTraveler);
+                if(RepositoryFactory.getProvider(repo.getScm()).pull(repo, fileTraveler) < 0)
+                    throw new IllegalStateException("Failed to pull code-repository id = " + repo.getId());
+                //先提交仓库的索引再保存最新的 commit id，否则进程退出后重新拉取时会跳过没有提交的文件
+                try {
+                    StorageFactory.commit(Constants.TYPE_CODE, writer);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Failed to commit indexes of code-repository id = " + repo.getId(), e);
+                }
                 //write repository status to persistent storage
                 RepositoryManager.INSTANCE.save(repo);
             }
@@ -159,6 +330,7 @@ public class FetchTaskThread extends Thread {
                     Query query = LongPoint.newExactQuery(Constants.FIELD_REPO_ID, repo.getId());
                     try {
                         writer.deleteDocuments(query);                              // Delete SourceCode indexes
+                        StorageFactory.markChanged(Constants.TYPE_CODE, 1);
                         RepositoryFactory.getProvider(repo.getScm()).delete(repo);  // Delete temp project git directory
                         RepositoryManager.INSTANCE.delete(repo.getId());            // Delete project metadata
                     } catch (IOException e) {
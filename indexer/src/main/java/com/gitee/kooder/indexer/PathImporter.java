@@ -99,11 +99,9 @@ public class PathImporter {
     private static int importJsonInPath(String type, String action, Path path, int thread_count) throws IOException {
         final AtomicInteger fc = new AtomicInteger(0);
         thread_count = Math.min(MAX_THREAD_COUNT, Math.max(thread_count, 1));
-        try (
-                IndexWriter writer = StorageFactory.getIndexWriter(type);
-                TaxonomyWriter taxonomyWriter = StorageFactory.getTaxonomyWriter(type);
-                Stream<Path> pathStream = Files.list(path);
-        ) {
+        IndexWriter writer = StorageFactory.getIndexWriter(type);
+        TaxonomyWriter taxonomyWriter = StorageFactory.getTaxonomyWriter(type);
+        try (Stream<Path> pathStream = Files.list(path)) {
             List<Path> allFiles = pathStream.filter(p -> p.toString().endsWith(".json") && !Files.isDirectory(p)).collect(Collectors.toList());
             int threshold = Math.max(allFiles.size()/thread_count, 1);
             BatchTaskRunner.execute(allFiles, threshold, files -> {
@@ -112,6 +110,8 @@ public class PathImporter {
                     fc.addAndGet(1);
                 });
             });
+        } finally {
+            StorageFactory.close();
         }
         return fc.get();
     }
@@ -135,11 +135,6 @@ public class PathImporter {
             task.write(i_writer, t_writer);
             log.info("{} imported in {}ms. ({})", file.toString(), (System.currentTimeMillis() - ct), Thread.currentThread().getName());
 
-        } catch (IllegalArgumentException e) {
-            //This is an jcseg & lucene bug, just retry to avoid this bug
-            log.error("Retry to import file: " + file.toString(), e);
-            //java.lang.IllegalArgumentException: startOffset must be non-negative, and endOffset must be >= startOffset
-            importJsonFile(type, action, file, i_writer, t_writer);
         } catch (Exception e) {
             log.error("Failed to import file: " + file.toString(), e);
         }
@@ -15,6 +15,7 @@
  */
 package com.gitee.kooder.indexer;
 
+import com.gitee.kooder.storage.StorageFactory;
 import org.apache.commons.daemon.Daemon;
 import org.apache.commons.daemon.DaemonContext;
 import org.slf4j.Logger;
@@ -59,6 +60,7 @@ public class ServerDaemon implements Daemon {
         try {
             this.fetchTaskThread.join(2000, 20);
         } catch (InterruptedException e) {}
+        StorageFactory.close();
     }
 
     @Override